@@ -0,0 +1,87 @@
+package io.anuke.ucore.core;
+
+import com.badlogic.gdx.Gdx;
+import io.anuke.ucore.core.Settings.SaveHandler;
+
+/**
+ * Flushes preferences on a single background thread. Used through {@link Settings#setSaveHandler(SaveHandler)}.
+ * <p>
+ * Saves that are requested while a flush is running are merged into one flush that starts after it,
+ * so bursts of saves only write the file up to twice. With {@link io.anuke.ucore.io.ExtendedPreferences}, changes are
+ * encoded when the flush starts and the file is written without blocking the preferences for other threads.
+ * <p>
+ * Errors are rethrown on the main thread through {@link com.badlogic.gdx.Application#postRunnable(Runnable)}.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class AsyncSaver implements SaveHandler{
+    private final Object lock = new Object();
+    private Runnable pending;
+    private boolean running;
+
+    public AsyncSaver(){
+        Thread thread = new Thread(this::run);
+        thread.setName("Settings Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void save(Runnable flush){
+        synchronized(lock){
+            pending = flush;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void finish(){
+        synchronized(lock){
+            while(pending != null || running){
+                try{
+                    lock.wait();
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void run(){
+        while(true){
+            Runnable flush;
+
+            synchronized(lock){
+                while(pending == null){
+                    try{
+                        lock.wait();
+                    }catch(InterruptedException e){
+                        return;
+                    }
+                }
+
+                flush = pending;
+                pending = null;
+                running = true;
+            }
+
+            try{
+                flush.run();
+            }catch(RuntimeException e){
+                if(Gdx.app != null){
+                    Gdx.app.postRunnable(() -> {
+                        throw e;
+                    });
+                }else{
+                    e.printStackTrace();
+                }
+            }finally{
+                synchronized(lock){
+                    running = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -12,30 +12,38 @@ import io.anuke.ucore.function.Function;
 import io.anuke.ucore.function.Supplier;
 import io.anuke.ucore.io.DefaultSerializers;
 import io.anuke.ucore.io.ExtendedPreferences;
-import io.anuke.ucore.io.ReusableByteArrayInputStream;
 import io.anuke.ucore.io.TypeSerializer;
 import io.anuke.ucore.io.TypeSerializer.TypeReader;
 import io.anuke.ucore.io.TypeSerializer.TypeWriter;
+import io.anuke.ucore.io.TypedDataInput;
+import io.anuke.ucore.io.TypedDataOutput;
 import io.anuke.ucore.util.OS;
 
 import java.io.*;
 
 @SuppressWarnings("unchecked")
 public class Settings{
+    /** Start of compressed blobs, followed by the uncompressed length. The lowest byte is the version. */
+    private static final int compressedHeader = 0xC1D60001;
+
     private static Preferences prefs;
     private static Function<String, FileHandle> prefHandler = OS::getAppDataDirectory;
     private static ObjectMap<String, Object> defaults = new ObjectMap<>();
     private static boolean disabled = false;
     private static Runnable errorHandler;
+    private static SaveHandler saveHandler;
+    private static Compressor compressor;
+    /** Keys whose bytes are compressed, with their dictionary, or null if they have none. */
+    private static ObjectMap<String, byte[]> compressedKeys = new ObjectMap<>();
 
     private static ObjectMap<Class<?>, TypeSerializer<?>> serializers = new ObjectMap<>();
     private static ObjectMap<String, TypeSerializer<?>> serializerNames = new ObjectMap<>();
     private static ObjectMap<Class<?>, String> classNames = new ObjectMap<>();
 
-    private static ByteArrayOutputStream byteStream = new OptimizedByteArrayOutputStream(16);
-    private static ReusableByteArrayInputStream byteInputStream = new ReusableByteArrayInputStream();
-    private static DataOutputStream dataOutput = new DataOutputStream(byteStream);
-    private static DataInputStream dataInput = new DataInputStream(byteInputStream);
+    private static TypedDataOutput dataOutput = new TypedDataOutput();
+    private static TypedDataInput dataInput = new TypedDataInput();
+    private static OptimizedByteArrayOutputStream compressedStream = new OptimizedByteArrayOutputStream(256);
+    private static DataOutputStream compressedOutput = new DataOutputStream(compressedStream);
 
     static{
         DefaultSerializers.register();
@@ -57,6 +65,43 @@ public class Settings{
         errorHandler = handler;
     }
 
+    /**
+     * Sets the handler that {@link #save()} passes flushes to, such as an {@link AsyncSaver}.
+     * If null, which is the default, saving happens on the calling thread. Ignored on WebGL.
+     */
+    public static void setSaveHandler(SaveHandler handler){
+        saveHandler = handler;
+    }
+
+    /**
+     * Sets the compressor for keys set with {@link #setCompressed(String, boolean)}, such as an {@link io.anuke.ucore.io.DeflateCompressor}.
+     * If null, which is the default, bytes are always stored uncompressed, and compressed bytes can't be read.
+     */
+    public static void setCompressor(Compressor compressor){
+        Settings.compressor = compressor;
+    }
+
+    /**
+     * Sets whether the bytes and objects of a key are stored compressed. Only has an effect if a compressor is set.
+     * Only bytes of keys set here are ever decompressed, so a key has to stay set while compressed values of it are stored.
+     */
+    public static void setCompressed(String name, boolean compressed){
+        if(compressed){
+            compressedKeys.put(name, null);
+        }else{
+            compressedKeys.remove(name);
+        }
+    }
+
+    /**
+     * Stores the bytes and objects of a key compressed with a preset dictionary, like {@link #setCompressed(String, boolean)}. Similar blobs, such as saves of the
+     * same kind, compress much better when the dictionary is a typical blob. Values are read with the dictionary of their key,
+     * so it has to be set before reading, and can't be changed while values compressed with it are still stored.
+     */
+    public static void setCompressed(String name, byte[] dictionary){
+        compressedKeys.put(name, dictionary);
+    }
+
     public static void load(String appName, String name){
         if(Gdx.app.getType() == ApplicationType.WebGL){
             prefs = Gdx.app.getPreferences(name);
@@ -133,21 +178,30 @@ public class Settings{
         putObject(name, value, value.getClass());
     }
 
+    /**
+     * Serializes an object and stores it as bytes. Types inside the object, such as the element type of an {@link com.badlogic.gdx.utils.Array},
+     * are stored as IDs; see {@link TypedDataOutput}.
+     */
     public static void putObject(String name, Object value, Class<?> type){
-        byteStream.reset();
-        if(!serializers.containsKey(type)){
+        TypeSerializer serializer = serializers.get(type);
+        if(serializer == null){
             throw new IllegalArgumentException(type + " does not have a serializer registered!");
         }
-        TypeSerializer serializer = serializers.get(type);
+
+        dataOutput.reset();
         try{
             serializer.write(dataOutput, value);
-            putBytes(name, byteStream.toByteArray());
+            putBytes(name, dataOutput.toByteArray());
         }catch(Exception e){
             throw new RuntimeException(e);
         }
     }
 
     public static void putBytes(String name, byte[] bytes){
+        if(compressor != null && bytes.length > 0 && compressedKeys.containsKey(name)){
+            bytes = compress(bytes, compressedKeys.get(name));
+        }
+
         if(prefs instanceof ExtendedPreferences){
             ((ExtendedPreferences) prefs).putBytes(name, bytes);
         }else{
@@ -180,13 +234,59 @@ public class Settings{
         return prefs.getString(name, (String) def(name));
     }
 
+    /**
+     * Returns the bytes of a key. Bytes of keys set with {@link #setCompressed(String, boolean)} are decompressed if they
+     * were stored compressed; those of other keys are always returned as they were stored.
+     */
     public static byte[] getBytes(String name){
+        byte[] bytes;
         if(prefs instanceof ExtendedPreferences){
-            return ((ExtendedPreferences) prefs).getBytes(name);
+            bytes = ((ExtendedPreferences) prefs).getBytes(name);
         }else{
             String str = getString(name, "");
-            return Base64Coder.decode(str);
+            bytes = Base64Coder.decode(str);
+        }
+
+        if(bytes != null && compressedKeys.containsKey(name) && isCompressed(bytes)){
+            bytes = decompress(bytes, compressedKeys.get(name));
         }
+        return bytes;
+    }
+
+    private static byte[] compress(byte[] bytes, byte[] dictionary){
+        try{
+            compressedStream.reset();
+            compressedOutput.writeInt(compressedHeader);
+            compressedOutput.writeInt(bytes.length);
+            compressor.compress(bytes, 0, bytes.length, dictionary, compressedStream);
+            return compressedStream.toByteArray();
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes, byte[] dictionary){
+        if(compressor == null) throw new IllegalArgumentException("Compressed bytes can't be read without a compressor!");
+        if(bytes[3] > (byte) compressedHeader) throw new RuntimeException("Unsupported compressed blob version: " + bytes[3]);
+
+        int length = ((bytes[4] & 0xff) << 24) | ((bytes[5] & 0xff) << 16) | ((bytes[6] & 0xff) << 8) | (bytes[7] & 0xff);
+        if(length < 0) throw new RuntimeException("Invalid compressed length: " + length);
+
+        try{
+            byte[] result = new byte[length];
+            compressor.decompress(bytes, 8, bytes.length - 8, dictionary, result);
+            return result;
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Only checked for keys that are set to be compressed. Their values may still be stored uncompressed if no compressor
+     * was set, but serialized objects start with a class name, a type header or a size, none of which can be mistaken for this header.
+     */
+    private static boolean isCompressed(byte[] bytes){
+        return bytes.length >= 8 && (((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8)) == (compressedHeader & 0xffffff00);
     }
 
     public static <T> T getObject(String name, Class<T> type, Supplier<T> def){
@@ -195,14 +295,13 @@ public class Settings{
     }
 
     private static <T> T getObject(String name, Class<T> type){
-        if(!serializers.containsKey(type)){
+        TypeSerializer serializer = serializers.get(type);
+        if(serializer == null){
             throw new IllegalArgumentException("Type " + type + " does not have a serializer registered!");
         }
 
-        TypeSerializer serializer = serializers.get(type);
-
         try{
-            byteInputStream.setBytes(getBytes(name));
+            dataInput.setBytes(getBytes(name));
             Object obj = serializer.read(dataInput);
             return (T)obj;
         }catch(Exception e){
@@ -250,13 +349,41 @@ public class Settings{
         return prefs.contains(name);
     }
 
+    /** Saves all preferences. If a save handler is set, this may return before the preferences are written. */
     public static void save(){
+        if(async()){
+            saveHandler.save(Settings::flush);
+        }else{
+            flush();
+        }
+    }
+
+    /** Saves all preferences, and waits until they are written. Should be used when the application exits. */
+    public static void saveAndWait(){
+        if(async()){
+            saveHandler.save(Settings::flush);
+            saveHandler.finish();
+        }else{
+            flush();
+        }
+    }
+
+    private static boolean async(){
+        return saveHandler != null && Gdx.app.getType() != ApplicationType.WebGL;
+    }
+
+    private static void flush(){
         try{
             prefs.flush();
         }catch(GdxRuntimeException e){
             if(errorHandler != null){
                 if(!disabled){
-                    errorHandler.run();
+                    //flushes may run on another thread, but the handler expects to be called on the main one
+                    if(async()){
+                        Gdx.app.postRunnable(errorHandler);
+                    }else{
+                        errorHandler.run();
+                    }
                 }
             }else{
                 throw e;
@@ -289,4 +416,28 @@ public class Settings{
     public static void defaults(String name, Object object){
         defaults.put(name, object);
     }
+
+    /**
+     * Compresses and decompresses stored bytes.
+     * Nothing is streamed: each value is compressed into a buffer in memory as a whole, and decompressed into an array of its full size.
+     */
+    public interface Compressor{
+        /** Writes compressed bytes to a stream, using a preset dictionary if it isn't null. */
+        void compress(byte[] bytes, int offset, int length, byte[] dictionary, OutputStream out) throws IOException;
+
+        /**
+         * Decompresses bytes into an array, which has the exact uncompressed length.
+         * @throws IOException if the bytes are corrupt, or were compressed with a different dictionary.
+         */
+        void decompress(byte[] bytes, int offset, int length, byte[] dictionary, byte[] result) throws IOException;
+    }
+
+    /** Runs preference flushes. */
+    public interface SaveHandler{
+        /** Schedules a flush. Several scheduled flushes may be merged into one. */
+        void save(Runnable flush);
+
+        /** Blocks until every scheduled flush has finished. */
+        void finish();
+    }
 }
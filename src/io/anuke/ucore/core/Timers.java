@@ -2,21 +2,60 @@ package io.anuke.ucore.core;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.utils.*;
-import com.badlogic.gdx.utils.Pool.Poolable;
 import com.badlogic.gdx.utils.Timer.Task;
-import io.anuke.ucore.util.Pooling;
 
+/**
+ * Keeps track of time, and runs delayed tasks.
+ * <p>
+ * Delayed runs are kept in a hierarchical timing wheel, so scheduling and cancelling take constant time, and
+ * {@link #update()} only looks at runs that are due. Time is divided into ticks of one unit of delta, which is 1/60 of a second
+ * by default. Each level of the wheel has 64 slots, and each slot of a level covers the whole range of the level below it.
+ * Runs are put into the lowest level whose range they fit in, and are moved down a level when the wheel reaches their slot.
+ */
 public class Timers{
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int wheelMask = wheelSize - 1;
+    /** With 6 bits per level, 4 levels cover 2^24 ticks, or about 77 hours. Later runs wait in the last slot and are put back when it is reached. */
+    private static final int levels = 4;
+
     private static double time;
-    private static DelayedRemovalArray<DelayRun> runs = new DelayedRemovalArray<>();
+    /** Time the wheel has advanced to. Unlike {@link #time}, this isn't changed by {@link #resetTime(float)}. */
+    private static double elapsed;
+    /** The last tick that was processed. */
+    private static long tick;
+    /** Amount of runs that are scheduled. */
+    private static int scheduled;
+    /** Each slot is the sentinel of a circular list. */
+    private static final DelayRun[][] wheel = new DelayRun[levels][wheelSize];
+    /** Runs whose tick was processed, but whose delay hasn't passed yet. */
+    private static final DelayRun due = new DelayRun();
+    /** Runs that are run at the end of the current update. Cancelling one of them removes it from here too. */
+    private static final DelayRun firing = new DelayRun();
+
     private static LongArray marks = new LongArray();
     private static DeltaProvider deltaimpl = () -> Math.min(Gdx.graphics.getDeltaTime() * 60f, 3f);
 
-    public static synchronized void run(float delay, Runnable r){
-        DelayRun run = Pooling.obtain(DelayRun.class, DelayRun::new);
+    static{
+        for(DelayRun[] level : wheel){
+            for(int i = 0; i < wheelSize; i++){
+                level[i] = new DelayRun();
+            }
+        }
+    }
+
+    /**
+     * Runs something after a delay, in the first update where the delay has passed.
+     *
+     * @return A handle that can be used to cancel the run.
+     */
+    public static synchronized DelayRun run(float delay, Runnable r){
+        DelayRun run = new DelayRun();
         run.finish = r;
-        run.delay = delay;
-        runs.add(run);
+        run.deadline = elapsed + delay;
+        schedule(run);
+        scheduled++;
+        return run;
     }
 
     public static synchronized void runTask(float delay, Runnable r){
@@ -54,28 +93,107 @@ public class Timers{
         float delta = delta();
 
         time += delta;
+        elapsed += delta;
 
-        runs.begin();
+        long target = (long) Math.floor(elapsed);
+        if(scheduled == 0){
+            tick = Math.max(tick, target);
+            return;
+        }
 
-        for(DelayRun run : runs){
-            run.delay -= delta;
+        for(DelayRun run = due.next; run != due; ){
+            DelayRun next = run.next;
+            if(run.deadline <= elapsed){
+                unlink(run);
+                link(firing, run);
+            }
+            run = next;
+        }
 
-            if(run.run != null)
-                run.run.run();
+        while(tick < target){
+            long next = tick + 1;
 
-            if(run.delay <= 0){
-                if(run.finish != null)
-                    run.finish.run();
-                runs.removeValue(run, true);
-                Pooling.free(run);
+            //when a level wraps around, the next slot of the level above it is spread over the lower levels
+            for(int level = 1; level < levels && (next & ((1L << (wheelBits * level)) - 1)) == 0; level++){
+                DelayRun slot = wheel[level][(int) (next >>> (wheelBits * level)) & wheelMask];
+                while(slot.next != slot){
+                    DelayRun run = slot.next;
+                    unlink(run);
+                    schedule(run);
+                }
+            }
+
+            tick = next;
+            DelayRun slot = wheel[0][(int) next & wheelMask];
+            while(slot.next != slot){
+                DelayRun run = slot.next;
+                unlink(run);
+                link(run.deadline <= elapsed ? firing : due, run);
             }
         }
 
-        runs.end();
+        while(firing.next != firing){
+            DelayRun run = firing.next;
+            unlink(run);
+            scheduled--;
+            run.finish.run();
+        }
     }
 
     public static synchronized void clear(){
-        runs.clear();
+        clear(due);
+        clear(firing);
+        for(DelayRun[] level : wheel){
+            for(DelayRun slot : level){
+                clear(slot);
+            }
+        }
+        scheduled = 0;
+    }
+
+    /** Puts a run into the slot of its deadline, relative to the next tick. */
+    private static void schedule(DelayRun run){
+        long target = (long) Math.floor(run.deadline);
+        long distance = target - (tick + 1);
+
+        if(distance < 0){
+            link(due, run);
+            return;
+        }
+
+        for(int level = 0; level < levels; level++){
+            if(distance < 1L << (wheelBits * (level + 1))){
+                link(wheel[level][(int) (target >>> (wheelBits * level)) & wheelMask], run);
+                return;
+            }
+        }
+
+        //too far ahead for the wheel; put back once the last slot is reached
+        long last = tick + (1L << (wheelBits * levels));
+        link(wheel[levels - 1][(int) (last >>> (wheelBits * (levels - 1))) & wheelMask], run);
+    }
+
+    /** Adds a run to the end of a list. */
+    private static void link(DelayRun list, DelayRun run){
+        run.prev = list.prev;
+        run.next = list;
+        list.prev.next = run;
+        list.prev = run;
+    }
+
+    private static void unlink(DelayRun run){
+        run.prev.next = run.next;
+        run.next.prev = run.prev;
+        run.prev = run.next = null;
+    }
+
+    private static void clear(DelayRun list){
+        for(DelayRun run = list.next; run != list; ){
+            DelayRun next = run.next;
+            run.prev = run.next = null;
+            run = next;
+        }
+        list.prev = list.next = list;
     }
 
     public static float delta(){
@@ -87,22 +205,52 @@ public class Timers{
     }
 
     static void dispose(){
-        runs.clear();
+        clear();
     }
 
     public interface DeltaProvider{
         float get();
     }
 
-    public static class DelayRun implements Poolable{
-        public float delay;
-        public Runnable run;
-        public Runnable finish;
+    /** A scheduled run. Can be used to cancel it. */
+    public static class DelayRun{
+        Runnable finish;
+        /** Value of {@link Timers#elapsed} at which this is run. */
+        double deadline;
+        /** Neighbours in the list of a slot, or null if this isn't scheduled. */
+        DelayRun prev, next;
 
-        @Override
-        public void reset(){
-            delay = 0;
-            run = finish = null;
+        DelayRun(){
+            prev = next = this;
+        }
+
+        /**
+         * Cancels this run, if it hasn't been run yet.
+         *
+         * @return Whether it was still scheduled.
+         */
+        public boolean cancel(){
+            synchronized(Timers.class){
+                if(next == null) return false;
+                unlink(this);
+                scheduled--;
+                finish = null;
+                return true;
+            }
+        }
+
+        /** Returns whether this hasn't been run or cancelled yet. */
+        public boolean isScheduled(){
+            synchronized(Timers.class){
+                return next != null;
+            }
+        }
+
+        /** Returns the delay that is left, or 0 if this isn't scheduled. */
+        public float getRemaining(){
+            synchronized(Timers.class){
+                return next == null ? 0f : (float) Math.max(deadline - elapsed, 0);
+            }
         }
     }
 }
@@ -2,6 +2,7 @@ package io.anuke.ucore.entities;
 
 import com.badlogic.gdx.utils.IntMap;
 import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.function.Consumer;
 import io.anuke.ucore.util.ThreadArray;
 
 public class Entities{
@@ -9,6 +10,7 @@ public class Entities{
     private static final EntityGroup<Entity> defaultGroup;
     private static final ThreadArray<EntityGroup<?>> groupArray = new ThreadArray<>();
     private static final IntMap<EntityGroup<?>> groups = new IntMap<>();
+    private static Consumer<EntityGroup<?>> parallelUpdater;
 
     static{
         defaultGroup = addGroup(Entity.class);
@@ -47,6 +49,17 @@ public class Entities{
         return group;
     }
 
+    /**Adds a group that uses a uniform grid with the specified cell size for collisions, instead of a quadtree.*/
+    public static <T extends Entity> EntityGroup<T> addGroup(Class<T> type, float gridSize){
+        return addGroup(type, true).useGrid(gridSize);
+    }
+
+    /**Sets the updater used for the entities of groups with parallel updates enabled, such as a {@link ParallelUpdater}.
+     * If this is null, all groups are updated on the calling thread.*/
+    public static void setParallelUpdater(Consumer<EntityGroup<?>> updater){
+        parallelUpdater = updater;
+    }
+
     public static void update(){
         update(defaultGroup());
         EntityQuery.collideGroups(defaultGroup(), defaultGroup());
@@ -59,6 +72,11 @@ public class Entities{
             EntityQuery.collisions().updatePhysics(group);
         }
 
+        if(group.parallelEnabled() && parallelUpdater != null){
+            parallelUpdater.accept(group);
+            return;
+        }
+
         for(Entity e : group.all()){
             e.update();
         }
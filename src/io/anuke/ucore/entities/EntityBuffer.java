@@ -0,0 +1,64 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ByteArray;
+import io.anuke.ucore.entities.trait.Entity;
+
+/**
+ * Records group additions, removals and dirty marks made on a worker thread during a parallel update,
+ * so they can be applied later on the logic thread in the order they were made.
+ */
+public class EntityBuffer{
+    private static final byte opAdd = 0, opRemove = 1, opDirty = 2;
+
+    private final Array<EntityGroup> groups = new Array<>();
+    private final Array<Entity> entities = new Array<>();
+    private final ByteArray ops = new ByteArray();
+
+    void add(EntityGroup group, Entity entity){
+        record(group, entity, opAdd);
+    }
+
+    void remove(EntityGroup group, Entity entity){
+        record(group, entity, opRemove);
+    }
+
+    void markDirty(EntityGroup group, Entity entity){
+        record(group, entity, opDirty);
+    }
+
+    /** Applies all recorded operations in order, then clears them. Must be called from the logic thread. */
+    public void flush(){
+        for(int i = 0; i < ops.size; i++){
+            EntityGroup group = groups.get(i);
+            Entity entity = entities.get(i);
+            byte op = ops.get(i);
+
+            if(op == opAdd){
+                group.add(entity);
+            }else if(op == opRemove){
+                group.remove(entity);
+            }else{
+                group.markDirty(entity);
+            }
+        }
+
+        clear();
+    }
+
+    public void clear(){
+        groups.clear();
+        entities.clear();
+        ops.clear();
+    }
+
+    public boolean isEmpty(){
+        return ops.size == 0;
+    }
+
+    private void record(EntityGroup group, Entity entity, byte op){
+        groups.add(group);
+        entities.add(entity);
+        ops.add(op);
+    }
+}
@@ -3,24 +3,32 @@ package io.anuke.ucore.entities;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntMap;
 import com.badlogic.gdx.utils.IntSet;
 import io.anuke.ucore.entities.trait.Entity;
 import io.anuke.ucore.entities.trait.SolidTrait;
+import io.anuke.ucore.function.BiConsumer;
 import io.anuke.ucore.util.Mathf;
 import io.anuke.ucore.util.Physics;
 import io.anuke.ucore.util.QuadTree;
+import io.anuke.ucore.util.SpatialIndex;
 
 public class EntityCollisions{
     //range for tile collision scanning
     private static final int r = 2;
     //move in 1-unit chunks
     private static final float seg = 1f;
+    //extra tiles checked around swept hitboxes, for tile hitboxes that extend outside their cell
+    private static final int sweepMargin = 1;
+    //overlap with tiles that is ignored by swept movement, as positions are rounded after each move
+    private static final float sweepEpsilon = 0.001f;
 
     //tile collisions
     private float tilesize;
     private Rectangle tmp = new Rectangle();
     private TileCollider collider;
     private TileHitboxProvider hitboxProvider;
+    private TileSolidityCache tileCache;
     private Vector2 vector = new Vector2();
     private Vector2 l1 = new Vector2();
     private Rectangle r1 = new Rectangle();
@@ -30,17 +38,74 @@ public class EntityCollisions{
     private IntSet collided = new IntSet();
     private Array<SolidTrait> arrOut = new Array<>();
 
+    //sweep and prune collisions
+    private IntMap<SweepAndPrune> sweeps = new IntMap<>();
+    private boolean sweepSameGroup;
+    private BiConsumer<SolidTrait, SolidTrait> sweepPair = this::checkSweepPair;
+
     public void setCollider(float tilesize, TileCollider collider, TileHitboxProvider hitbox){
         this.tilesize = tilesize;
         this.collider = collider;
         this.hitboxProvider = hitbox;
+        this.tileCache = null;
     }
 
     public void setCollider(float tilesize, TileCollider collider){
         setCollider(tilesize, collider, (x, y, out) -> out.setSize(tilesize).setCenter(x * tilesize, y * tilesize));
     }
 
+    /**
+     * Caches the solidity and hitboxes of the tiles from (0, 0) to (width, height) from the current collider,
+     * so tile collisions are checked against a bitmap instead of calling the collider for each tile.
+     * Tiles must be invalidated in the returned cache when they change. Setting a new collider removes the cache.
+     */
+    public TileSolidityCache cacheTiles(int width, int height){
+        if(collider == null)
+            throw new IllegalArgumentException("No tile collider specified! Call setCollider() first.");
+        return tileCache = new TileSolidityCache(width, height, collider, hitboxProvider);
+    }
+
+    /** Returns the tile cache, or null if tiles aren't cached. */
+    public TileSolidityCache getTileCache(){
+        return tileCache;
+    }
+
     public void move(SolidTrait entity, float deltax, float deltay){
+        if(tileCache != null) tileCache.refresh();
+
+        if(entity.continuousTileCollision()){
+            moveSwept(entity, deltax, deltay);
+        }else{
+            moveStepped(entity, deltax, deltay);
+        }
+    }
+
+    /**
+     * Moves an entity by resolving each axis in a single pass over the tiles its hitbox sweeps through, instead of in 1-unit steps.
+     * This has the same result as stepping, except around tile corners: stepping may push a hitbox sideways past a corner
+     * it overlaps by less than a unit, while this stops it. Hitboxes that start inside a solid tile fall back to stepping.
+     */
+    public void moveSwept(SolidTrait entity, float deltax, float deltay){
+        if(collider == null)
+            throw new IllegalArgumentException("No tile collider specified! Call setCollider() first.");
+
+        Rectangle rect = r1;
+        entity.getHitboxTile(rect);
+
+        if(overlapsSolid(rect)){
+            moveStepped(entity, deltax, deltay);
+            return;
+        }
+
+        float startx = rect.x, starty = rect.y;
+        rect.x += sweep(rect, deltax, true);
+        rect.y += sweep(rect, deltay, false);
+
+        entity.setX(entity.getX() + rect.x - startx);
+        entity.setY(entity.getY() + rect.y - starty);
+    }
+
+    private void moveStepped(SolidTrait entity, float deltax, float deltay){
 
         boolean movedx = false;
 
@@ -72,6 +137,7 @@ public class EntityCollisions{
     public void moveInternal(SolidTrait entity, float deltax, float deltay, boolean x){
         if(collider == null)
             throw new IllegalArgumentException("No tile collider specified! Call setCollider() first.");
+        if(tileCache != null) tileCache.refresh();
 
         Rectangle rect = r1;
         entity.getHitboxTile(rect);
@@ -84,9 +150,9 @@ public class EntityCollisions{
         for(int dx = -r; dx <= r; dx++){
             for(int dy = -r; dy <= r; dy++){
                 int wx = dx + tilex, wy = dy + tiley;
-                if(collider.solid(wx, wy)){
+                if(solid(wx, wy)){
 
-                    hitboxProvider.getHitbox(wx, wy, tmp);
+                    tileHitbox(wx, wy, tmp);
 
                     if(tmp.overlaps(rect)){
                         Vector2 v = Physics.overlap(rect, tmp, x);
@@ -101,9 +167,65 @@ public class EntityCollisions{
         entity.setY(entity.getY() + rect.y - r2.y);
     }
 
+    /** Returns how far a rectangle can move along one axis before touching a solid tile. */
+    private float sweep(Rectangle rect, float delta, boolean x){
+        if(delta == 0f) return 0f;
+
+        int sign = delta > 0 ? 1 : -1;
+        //leading edge of the rectangle, and its extent on the other axis
+        float lead = x ? (sign > 0 ? rect.x + rect.width : rect.x) : (sign > 0 ? rect.y + rect.height : rect.y);
+        float min = x ? rect.y : rect.x, max = x ? rect.y + rect.height : rect.x + rect.width;
+
+        int from = Mathf.scl2(lead, tilesize) - sign * sweepMargin, to = Mathf.scl2(lead + delta, tilesize) + sign * sweepMargin;
+        int lo = Mathf.scl2(min, tilesize) - sweepMargin, hi = Mathf.scl2(max, tilesize) + sweepMargin;
+        float allowed = Math.abs(delta);
+
+        for(int i = from; i != to + sign; i += sign){
+            //tiles in this row or column and beyond are all further than the closest hit so far
+            if(((i - sign * (0.5f + sweepMargin)) * tilesize - lead) * sign > allowed) break;
+
+            for(int j = lo; j <= hi; j++){
+                int wx = x ? i : j, wy = x ? j : i;
+                if(!solid(wx, wy)) continue;
+
+                tileHitbox(wx, wy, tmp);
+                float tmin = x ? tmp.y : tmp.x, tmax = x ? tmp.y + tmp.height : tmp.x + tmp.width;
+                if(tmin >= max - sweepEpsilon || tmax <= min + sweepEpsilon) continue;
+
+                float near = x ? (sign > 0 ? tmp.x : tmp.x + tmp.width) : (sign > 0 ? tmp.y : tmp.y + tmp.height);
+                float dst = (near - lead) * sign;
+                if(dst >= -sweepEpsilon && dst < allowed){
+                    allowed = Math.max(dst, 0f);
+                }
+            }
+        }
+
+        return allowed * sign;
+    }
+
+    /** Returns whether a rectangle overlaps any solid tile by more than the sweep epsilon, checking every tile it covers. */
+    private boolean overlapsSolid(Rectangle rect){
+        int x1 = Mathf.scl2(rect.x, tilesize) - sweepMargin, y1 = Mathf.scl2(rect.y, tilesize) - sweepMargin;
+        int x2 = Mathf.scl2(rect.x + rect.width, tilesize) + sweepMargin, y2 = Mathf.scl2(rect.y + rect.height, tilesize) + sweepMargin;
+
+        for(int wx = x1; wx <= x2; wx++){
+            for(int wy = y1; wy <= y2; wy++){
+                if(solid(wx, wy)){
+                    tileHitbox(wx, wy, tmp);
+                    if(tmp.x < rect.x + rect.width - sweepEpsilon && tmp.x + tmp.width > rect.x + sweepEpsilon &&
+                        tmp.y < rect.y + rect.height - sweepEpsilon && tmp.y + tmp.height > rect.y + sweepEpsilon){
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     public boolean overlapsTile(Rectangle rect){
         if(collider == null)
             throw new IllegalArgumentException("No tile collider specified! Call setCollider() first.");
+        if(tileCache != null) tileCache.refresh();
 
         rect.getCenter(vector);
         int r = 1;
@@ -115,8 +237,8 @@ public class EntityCollisions{
         for(int dx = -r; dx <= r; dx++){
             for(int dy = -r; dy <= r; dy++){
                 int wx = dx + tilex, wy = dy + tiley;
-                if(collider.solid(wx, wy)){
-                    hitboxProvider.getHitbox(wx, wy, r2);
+                if(solid(wx, wy)){
+                    tileHitbox(wx, wy, r2);
 
                     if(r2.overlaps(rect)){
                         return true;
@@ -127,10 +249,27 @@ public class EntityCollisions{
         return false;
     }
 
+    private boolean solid(int x, int y){
+        return tileCache != null ? tileCache.solid(x, y) : collider.solid(x, y);
+    }
+
+    private void tileHitbox(int x, int y, Rectangle out){
+        if(tileCache != null){
+            tileCache.getHitbox(x, y, out);
+        }else{
+            hitboxProvider.getHitbox(x, y, out);
+        }
+    }
+
     public <T extends Entity> void updatePhysics(EntityGroup<T> group){
         collided.clear();
 
-        QuadTree tree = group.tree();
+        if(group.incrementalEnabled()){
+            updatePhysicsIncremental(group);
+            return;
+        }
+
+        SpatialIndex tree = group.tree();
         tree.clear();
 
         for(Entity entity : group.all()){
@@ -142,6 +281,21 @@ public class EntityCollisions{
         }
     }
 
+    /**Only relocates entities that were marked as dirty; everything else stays where it is in the tree.*/
+    private <T extends Entity> void updatePhysicsIncremental(EntityGroup<T> group){
+        QuadTree<T> tree = (QuadTree<T>) group.tree();
+
+        for(T entity : group.dirty()){
+            if(entity instanceof SolidTrait && entity.getGroup() == group){
+                SolidTrait s = (SolidTrait) entity;
+                s.lastPosition().set(s.getX(), s.getY());
+                tree.update(entity);
+            }
+        }
+
+        group.dirty().clear();
+    }
+
     private void checkCollide(Entity entity, Entity other){
 
         SolidTrait a = (SolidTrait) entity;
@@ -171,8 +325,8 @@ public class EntityCollisions{
         }
     }
 
-    private boolean collide(float x1, float y1, float w1, float h1, float vx1, float vy1,
-                            float x2, float y2, float w2, float h2, float vx2, float vy2, Vector2 out){
+    public static boolean collide(float x1, float y1, float w1, float h1, float vx1, float vy1,
+                                  float x2, float y2, float w2, float h2, float vx2, float vy2, Vector2 out){
         float px = vx1, py = vy1;
 
         vx1 -= vx2;
@@ -238,7 +392,7 @@ public class EntityCollisions{
             r2.merge(r1);
 
             arrOut.clear();
-            groupb.tree().getIntersect(arrOut, r2);
+            groupb.solidTree().getIntersect(arrOut, r2);
 
             for(SolidTrait sc : arrOut){
                 sc.getHitbox(r1);
@@ -251,6 +405,41 @@ public class EntityCollisions{
         }
     }
 
+    /**Collides two groups using a sort-and-sweep broadphase instead of the group trees.
+     * This is faster for large groups of small, moving entities, as the sorted order is kept between frames.
+     * The groups do not need to use trees.*/
+    public void collideGroupsSweep(EntityGroup<?> groupa, EntityGroup<?> groupb){
+        int key = (groupa.getID() << 16) | groupb.getID();
+        SweepAndPrune sweep = sweeps.get(key);
+        if(sweep == null){
+            sweep = new SweepAndPrune();
+            sweeps.put(key, sweep);
+        }
+
+        sweepSameGroup = groupa == groupb;
+        sweep.update(groupa, groupb);
+        sweep.pairs(sweepSameGroup, sweepPair);
+    }
+
+    private void checkSweepPair(SolidTrait a, SolidTrait b){
+        //same filter as collideGroups: swept hitbox of one against the current hitbox of the other
+        if(sweptOverlaps(a, b) || (sweepSameGroup && sweptOverlaps(b, a))){
+            checkCollide(a, b);
+        }
+    }
+
+    private boolean sweptOverlaps(SolidTrait a, SolidTrait b){
+        a.getHitbox(r1);
+        r1.x += (a.lastPosition().x - a.getX());
+        r1.y += (a.lastPosition().y - a.getY());
+
+        a.getHitbox(r2);
+        r2.merge(r1);
+
+        b.getHitbox(r1);
+        return r2.overlaps(r1);
+    }
+
     public static interface TileCollider{
         boolean solid(int x, int y);
     }
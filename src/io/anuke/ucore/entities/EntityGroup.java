@@ -3,12 +3,19 @@ package io.anuke.ucore.entities;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.ObjectSet;
 import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.entities.trait.SolidTrait;
 import io.anuke.ucore.function.Consumer;
 import io.anuke.ucore.function.Predicate;
+import io.anuke.ucore.util.PooledQuadTree;
 import io.anuke.ucore.util.QuadTree;
+import io.anuke.ucore.util.SpatialHashGrid;
+import io.anuke.ucore.util.SpatialIndex;
 
 public class EntityGroup<T extends Entity>{
+    /**The buffer that additions and removals are redirected to on the current thread, if any. Set during parallel updates.*/
+    static final ThreadLocal<EntityBuffer> activeBuffer = new ThreadLocal<>();
     private static int lastid;
     private final boolean useTree;
     private final int id;
@@ -17,7 +24,12 @@ public class EntityGroup<T extends Entity>{
     private final Array<T> entitiesToRemove = new Array<>(false, 16);
     private final Array<T> entitiesToAdd = new Array<>(false, 16);
     private IntMap<T> map;
-    private QuadTree<T> tree;
+    /**Entities that are queued to be added, by ID. Only used when mapping is enabled.*/
+    private IntMap<T> queued;
+    private SpatialIndex<T> tree;
+    private float gridSize;
+    private ObjectSet<T> dirty;
+    private boolean parallel;
     private Consumer<T> removeListener;
     private Consumer<T> addListener;
 
@@ -41,6 +53,7 @@ public class EntityGroup<T extends Entity>{
 
     public EntityGroup<T> enableMapping(){
         map = new IntMap<>();
+        queued = new IntMap<>();
         return this;
     }
 
@@ -48,6 +61,54 @@ public class EntityGroup<T extends Entity>{
         return map != null;
     }
 
+    /**Marks this group as safe to update on multiple threads at once; see {@link Entities#setParallelUpdater(Consumer)}.
+     * Entities in this group may only read shared state and add or remove entities during update().
+     * Note that constructing entities or using {@link io.anuke.ucore.util.Pooling} is not thread-safe.*/
+    public EntityGroup<T> enableParallel(){
+        parallel = true;
+        return this;
+    }
+
+    public boolean parallelEnabled(){
+        return parallel;
+    }
+
+    /**Enables incremental tree updates for this group.
+     * Instead of rebuilding the tree every frame, only entities marked with {@link #markDirty(Entity)} are moved in the tree.
+     * This is intended for groups where most entities never move, such as buildings.*/
+    public EntityGroup<T> enableIncremental(){
+        dirty = new ObjectSet<>();
+        if(tree != null){
+            //replace the current tree with one that supports tracking
+            Rectangle bounds = tree.getBounds();
+            setTree(bounds.x, bounds.y, bounds.width, bounds.height);
+        }
+        return this;
+    }
+
+    public boolean incrementalEnabled(){
+        return dirty != null;
+    }
+
+    /**Marks an entity as having moved, so that its position in the tree is updated next frame.
+     * Only has an effect if incremental updates are enabled.*/
+    public void markDirty(T entity){
+        EntityBuffer buffer = activeBuffer.get();
+        if(buffer != null){
+            buffer.markDirty(this, entity);
+            return;
+        }
+
+        if(dirty != null){
+            dirty.add(entity);
+        }
+    }
+
+    /**Returns the set of entities that have moved since the last physics update. Only used for incremental groups.*/
+    public ObjectSet<T> dirty(){
+        return dirty;
+    }
+
     public Class<T> getType(){
         return type;
     }
@@ -61,18 +122,29 @@ public class EntityGroup<T extends Entity>{
         for(T e : entitiesToAdd){
             if(e == null)
                 continue;
+            e.setGroupIndex(entityArray.size);
             entityArray.add(e);
             e.added();
 
+            if(dirty != null){
+                dirty.add(e);
+            }
+
             if(map != null){
                 map.put(e.getID(), e);
             }
         }
 
         entitiesToAdd.clear();
+        if(queued != null)
+            queued.clear();
 
         for(T e : entitiesToRemove){
-            entityArray.removeValue(e, true);
+            removeIndexed(entityArray, e);
+            if(dirty != null){
+                dirty.remove(e);
+                if(tree != null) tree.remove(e);
+            }
             if(map != null){
                 map.remove(e.getID());
             }
@@ -93,24 +165,81 @@ public class EntityGroup<T extends Entity>{
         if(t != null){ //remove if present in map already
             remove(t);
         }else{ //maybe it's being queued?
-            for(T check : entitiesToAdd){
-                if(check.getID() == id){ //if it is indeed queued, remove it
-                    entitiesToAdd.removeValue(check, true);
-                    if(removeListener != null){
-                        removeListener.accept(check);
-                    }
-                    break;
+            T check = queued.remove(id);
+            if(check != null){ //if it is indeed queued, remove it
+                removeIndexed(entitiesToAdd, check);
+                if(removeListener != null){
+                    removeListener.accept(check);
                 }
             }
         }
     }
 
-    public QuadTree tree(){
+    /**Removes an entity using its group index, moving the last entity into its place.
+     * Falls back to a linear search if the index is missing or out of date.*/
+    private boolean removeIndexed(Array<T> array, T e){
+        int index = e.getGroupIndex();
+        if(index < 0 || index >= array.size || array.get(index) != e){
+            index = array.indexOf(e, true);
+            if(index == -1) return false;
+        }
+
+        array.removeIndex(index);
+        if(index < array.size){
+            array.get(index).setGroupIndex(index);
+        }
+        return true;
+    }
+
+    /**Returns the spatial index of this group, or null if it wasn't set yet.
+     * Depending on the group's settings this is a {@link SpatialHashGrid}, a {@link QuadTree} for incremental groups,
+     * or a {@link PooledQuadTree} otherwise. Code that needs a QuadTree should set one with {@link #setTree(SpatialIndex)}.*/
+    public SpatialIndex<T> tree(){
         return tree;
     }
 
+    /**Returns the spatial index of this group, typed by what it holds: only solid entities are inserted into it.*/
+    @SuppressWarnings("unchecked")
+    public SpatialIndex<SolidTrait> solidTree(){
+        return (SpatialIndex<SolidTrait>) (SpatialIndex<?>) tree;
+    }
+
+    /**Makes this group use a uniform {@link SpatialHashGrid} with the specified cell size instead of a quadtree.
+     * Takes effect the next time the tree is set.*/
+    public EntityGroup<T> useGrid(float cellSize){
+        this.gridSize = cellSize;
+        return this;
+    }
+
+    public boolean gridEnabled(){
+        return gridSize > 0;
+    }
+
     public void setTree(float x, float y, float w, float h){
-        tree = new QuadTree<>(Entities.maxLeafObjects, new Rectangle(x, y, w, h));
+        if(gridEnabled()){
+            setTree(new SpatialHashGrid<>(gridSize, new Rectangle(x, y, w, h)));
+        }else if(incrementalEnabled()){
+            setTree(new QuadTree<>(Entities.maxLeafObjects, new Rectangle(x, y, w, h)));
+        }else{
+            //rebuilt every frame, so use the version that doesn't allocate
+            setTree(new PooledQuadTree<>(Entities.maxLeafObjects, new Rectangle(x, y, w, h)));
+        }
+    }
+
+    public void setTree(SpatialIndex<T> tree){
+        this.tree = tree;
+
+        if(dirty != null){
+            if(!(tree instanceof QuadTree)){
+                throw new IllegalArgumentException("Incremental updates are only supported by quadtrees!");
+            }
+
+            ((QuadTree<T>) tree).setTracking(true);
+            //everything has to be re-inserted into the new tree
+            for(T e : entityArray){
+                dirty.add(e);
+            }
+        }
     }
 
     public boolean isEmpty(){
@@ -131,12 +260,21 @@ public class EntityGroup<T extends Entity>{
 
     public void add(T type){
         if(type == null) throw new RuntimeException("Cannot add a null entity!");
+
+        EntityBuffer buffer = activeBuffer.get();
+        if(buffer != null){
+            buffer.add(this, type);
+            return;
+        }
+
         if(type.getGroup() != null) return;
         type.setGroup(this);
+        type.setGroupIndex(entitiesToAdd.size);
         entitiesToAdd.add(type);
 
         if(mappingEnabled()){
             map.put(type.getID(), type);
+            queued.put(type.getID(), type);
         }
 
         if(addListener != null){
@@ -146,6 +284,13 @@ public class EntityGroup<T extends Entity>{
 
     public void remove(T type){
         if(type == null) throw new RuntimeException("Cannot remove a null entity!");
+
+        EntityBuffer buffer = activeBuffer.get();
+        if(buffer != null){
+            buffer.remove(this, type);
+            return;
+        }
+
         type.setGroup(null);
         entitiesToRemove.add(type);
 
@@ -155,20 +300,32 @@ public class EntityGroup<T extends Entity>{
     }
 
     public void clear(){
-        for(T entity : entityArray)
+        for(T entity : entityArray){
             entity.setGroup(null);
+            entity.setGroupIndex(-1);
+        }
 
-        for(T entity : entitiesToAdd)
+        for(T entity : entitiesToAdd){
             entity.setGroup(null);
+            entity.setGroupIndex(-1);
+        }
 
-        for(T entity : entitiesToRemove)
+        for(T entity : entitiesToRemove){
             entity.setGroup(null);
+            entity.setGroupIndex(-1);
+        }
 
         entitiesToAdd.clear();
         entitiesToRemove.clear();
         entityArray.clear();
         if(map != null)
             map.clear();
+        if(queued != null)
+            queued.clear();
+        if(dirty != null){
+            dirty.clear();
+            if(tree != null) tree.clear();
+        }
     }
 
     public T find(Predicate<T> pred){
@@ -7,14 +7,29 @@ import io.anuke.ucore.entities.trait.Entity;
 import io.anuke.ucore.entities.trait.SolidTrait;
 import io.anuke.ucore.function.Consumer;
 import io.anuke.ucore.function.Predicate;
+import io.anuke.ucore.util.SpatialIndex.DistanceProvider;
 import io.anuke.ucore.util.ThreadArray;
 
 import static io.anuke.ucore.entities.Entities.defaultGroup;
 
+/**
+ * Static lookups of entities in the spatial indices of groups.
+ * <p>
+ * Only rectangle queries that take a consumer or a {@link QueryContext} may be called from several threads at once.
+ * Every other query, including {@link #getClosest(EntityGroup, float, float, float, Predicate)},
+ * {@link #getKNearest(EntityGroup, float, float, float, int, Predicate, Array)} and the raycasts, uses scratch state
+ * shared by all callers, and must only be called from one thread at a time.
+ */
 public class EntityQuery{
     private static final EntityCollisions collisions = new EntityCollisions();
     private static final ThreadArray<SolidTrait> array = new ThreadArray<>();
     private static final Rectangle r1 = new Rectangle();
+    private static final Array<SolidTrait> nearest = new Array<>();
+    /** Distance to an entity's position. Assumes that position is inside its hitbox. */
+    private static final DistanceProvider<Entity> positionDistance = (e, x, y) -> {
+        float dx = e.getX() - x, dy = e.getY() - y;
+        return dx * dx + dy * dy;
+    };
 
     public static EntityCollisions collisions(){
         return collisions;
@@ -37,11 +52,15 @@ public class EntityQuery{
         init(x, y, w, h);
     }
 
+    /**
+     * Processes entities whose hitboxes intersect the rectangle. Unlike the methods that return arrays, this uses no shared state,
+     * so it may be called from any thread while the group's tree isn't being modified.
+     */
     public static void getNearby(EntityGroup<?> group, Rectangle rect, Consumer<SolidTrait> out){
 
         if(!group.useTree())
             throw new RuntimeException("This group does not support quadtrees! Enable quadtrees when creating it.");
-        group.tree().getIntersect(out, rect);
+        group.solidTree().getIntersect(out, rect);
     }
 
     public static Array<SolidTrait> getNearby(EntityGroup<?> group, Rectangle rect){
@@ -49,7 +68,7 @@ public class EntityQuery{
         array.clear();
         if(!group.useTree())
             throw new RuntimeException("This group does not support quadtrees! Enable quadtrees when creating it.");
-        group.tree().getIntersect(array, rect);
+        group.solidTree().getIntersect(array, rect);
         return array;
     }
 
@@ -61,6 +80,31 @@ public class EntityQuery{
         getNearby(group, r1.setSize(size).setCenter(x, y), out);
     }
 
+    /**
+     * Processes entities whose hitboxes intersect a square of the specified size, using the context's rectangle.
+     * Safe to call from any thread with its own context, while the group's tree isn't being modified.
+     */
+    public static void forEachNearby(EntityGroup<?> group, float x, float y, float size, QueryContext context, Consumer<SolidTrait> out){
+        getNearby(group, context.rect(x, y, size), out);
+    }
+
+    /**
+     * Fills the context's result array with entities that may intersect the rectangle, and returns it.
+     * Safe to call from any thread with its own context, while the group's tree isn't being modified.
+     */
+    public static Array<SolidTrait> getNearby(EntityGroup<?> group, Rectangle rect, QueryContext context){
+        context.results.clear();
+        if(!group.useTree())
+            throw new RuntimeException("This group does not support quadtrees! Enable quadtrees when creating it.");
+        group.solidTree().getIntersect(context.results, rect);
+        return context.results;
+    }
+
+    /** Fills the context's result array with entities that may intersect a square of the specified size, and returns it. */
+    public static Array<SolidTrait> getNearby(EntityGroup<?> group, float x, float y, float size, QueryContext context){
+        return getNearby(group, context.rect(x, y, size), context);
+    }
+
     public static Array<SolidTrait> getNearby(float x, float y, float size){
         return getNearby(defaultGroup(), r1.setSize(size).setCenter(x, y));
     }
@@ -69,28 +113,48 @@ public class EntityQuery{
         return getNearby(group, r1.setSize(size).setCenter(x, y));
     }
 
+    /** Returns the entity closest to a point that passes the predicate, or null. Not thread-safe. */
     public static <T extends Entity> T getClosest(EntityGroup<T> group, float x, float y, float range, Predicate<T> pred){
+        nearest.clear();
+        getKNearest(group, x, y, range, 1, pred, (Array<T>) nearest);
+        T closest = nearest.size == 0 ? null : (T) nearest.first();
+        nearest.clear();
+        return closest;
+    }
 
-        T closest = null;
-        float cdist = 0f;
-        Array<SolidTrait> entities = getNearby(group, x, y, range * 2f);
-        for(int i = 0; i < entities.size; i++){
-            T e = (T) entities.get(i);
-            if(!pred.test(e))
-                continue;
-
-            float dist = Vector2.dst(e.getX(), e.getY(), x, y);
-            if(dist < range)
-                if(closest == null || dist < cdist){
-                    closest = e;
-                    cdist = dist;
-                }
-        }
+    /**
+     * Fills the out array with up to k entities closest to a point, nearest first.
+     * Only entities closer than the range that pass the predicate are included.
+     * Entity positions are assumed to be inside their hitboxes.
+     * Not thread-safe, as the search uses heaps stored in the group's tree.
+     */
+    public static <T extends Entity> void getKNearest(EntityGroup<T> group, float x, float y, float range, int k, Predicate<T> pred, Array<T> out){
+        if(!group.useTree())
+            throw new RuntimeException("This group does not support quadtrees! Enable quadtrees when creating it.");
+        group.tree().getNearest(x, y, range, k, pred, (DistanceProvider<T>) positionDistance, out);
+    }
 
-        return closest;
+    /** Returns the first entity whose hitbox is hit by the segment from (x1, y1) to (x2, y2), or null. */
+    public static <T extends Entity> T raycast(EntityGroup<T> group, float x1, float y1, float x2, float y2){
+        return raycast(group, x1, y1, x2, y2, e -> true, null);
+    }
+
+    /**
+     * Returns the first entity whose hitbox is hit by the segment from (x1, y1) to (x2, y2) and passes the predicate, or null.
+     *
+     * @param hit If not null, set to the point where the hitbox was hit.
+     */
+    public static <T extends Entity> T raycast(EntityGroup<T> group, float x1, float y1, float x2, float y2, Predicate<T> pred, Vector2 hit){
+        if(!group.useTree())
+            throw new RuntimeException("This group does not support quadtrees! Enable quadtrees when creating it.");
+        return group.tree().raycast(x1, y1, x2, y2, pred, hit);
     }
 
     public static void collideGroups(EntityGroup<?> groupa, EntityGroup<?> groupb){
         collisions().collideGroups(groupa, groupb);
     }
+
+    public static void collideGroupsSweep(EntityGroup<?> groupa, EntityGroup<?> groupb){
+        collisions().collideGroupsSweep(groupa, groupb);
+    }
 }
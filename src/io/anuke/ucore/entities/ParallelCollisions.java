@@ -0,0 +1,401 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.entities.trait.SolidTrait;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multithreaded version of {@link EntityCollisions#collideGroups(EntityGroup, EntityGroup)} for very large groups.
+ * <p>
+ * Collisions are found in three phases:
+ * <ol>
+ * <li>Hitboxes of every solid entity are copied into flat arrays, and entities are bucketed into square tiles.</li>
+ * <li>Tiles are split into fixed chunks, which are checked on a {@link ForkJoinPool}. Each chunk has its own scratch state
+ * and result buffer, and only reads the copied hitboxes, so no entity code runs on worker threads.</li>
+ * <li>Results are sorted by entity order and {@link SolidTrait#collides(SolidTrait)} and
+ * {@link SolidTrait#collision(SolidTrait, float, float)} are called on the calling thread.</li>
+ * </ol>
+ * Callbacks are always delivered in the same order for the same input, regardless of thread count or scheduling.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class ParallelCollisions{
+    /** Maximum amount of tiles; tiles are made larger if the entities are spread out further than this allows. */
+    private static final int maxTiles = 64 * 64;
+
+    private final ForkJoinPool pool;
+    private final float tileSize;
+    private final Chunk[] chunks;
+    private final RecursiveAction root = new RecursiveAction(){
+        @Override
+        protected void compute(){
+            invokeAll(chunks);
+        }
+    };
+
+    //entity snapshot
+    private final Array<SolidTrait> entities = new Array<>(false, 16);
+    private int sizea;
+    private boolean sameGroup;
+    /** Swept hitbox from last position to current position: x1, y1, x2, y2 */
+    private float[] swept = new float[16 * 4];
+    /** Current hitbox: x1, y1, x2, y2 */
+    private float[] current = new float[16 * 4];
+    /** Hitbox at last position: x, y, width, height */
+    private float[] last = new float[16 * 4];
+    /** Velocity: x, y */
+    private float[] velocity = new float[16 * 2];
+    /** Position: x, y */
+    private float[] position = new float[16 * 2];
+    /** Tile range of each entity: x1, y1, x2, y2 */
+    private int[] tileRange = new int[16 * 4];
+
+    //tiles
+    private float tileOriginX, tileOriginY, currentTileSize;
+    private int tilesX, tilesY;
+    private int[] tileStart = new int[16];
+    private int[] tileItems = new int[16];
+
+    //merged results
+    private int[] mergeCount = new int[16];
+    private int[] mergeB = new int[16];
+    private float[] mergeX = new float[16], mergeY = new float[16];
+
+    /**
+     * @param pool The pool to run collision checks on.
+     * @param tileSize Size of each tile. Should be several times larger than the typical entity.
+     */
+    public ParallelCollisions(ForkJoinPool pool, float tileSize){
+        this.pool = pool;
+        this.tileSize = tileSize;
+        this.chunks = new Chunk[pool.getParallelism() * 4];
+        for(int i = 0; i < chunks.length; i++){
+            chunks[i] = new Chunk();
+        }
+    }
+
+    public ParallelCollisions(float tileSize){
+        this(ForkJoinPool.commonPool(), tileSize);
+    }
+
+    /** Collides every solid entity in group A with every solid entity in group B. Must be called from the logic thread. */
+    public void collideGroups(EntityGroup<?> groupa, EntityGroup<?> groupb){
+        sameGroup = groupa == groupb;
+
+        snapshot(groupa, groupb);
+        if(entities.size == 0) return;
+
+        buildTiles();
+
+        int tiles = tilesX * tilesY;
+        for(int i = 0; i < chunks.length; i++){
+            chunks[i].reinitialize();
+            chunks[i].set(tiles * i / chunks.length, tiles * (i + 1) / chunks.length);
+        }
+
+        root.reinitialize();
+        pool.invoke(root);
+
+        deliver();
+
+        entities.clear();
+    }
+
+    private void snapshot(EntityGroup<?> groupa, EntityGroup<?> groupb){
+        entities.clear();
+
+        for(Entity entity : groupa.all()){
+            if(entity instanceof SolidTrait) entities.add((SolidTrait) entity);
+        }
+
+        sizea = entities.size;
+
+        if(!sameGroup){
+            for(Entity entity : groupb.all()){
+                if(entity instanceof SolidTrait) entities.add((SolidTrait) entity);
+            }
+        }
+
+        int size = entities.size;
+        if(swept.length < size * 4){
+            int cap = Math.max(size, swept.length / 4 * 2);
+            swept = new float[cap * 4];
+            current = new float[cap * 4];
+            last = new float[cap * 4];
+            velocity = new float[cap * 2];
+            position = new float[cap * 2];
+            tileRange = new int[cap * 4];
+        }
+
+        Chunk scratch = chunks[0];
+        for(int i = 0; i < size; i++){
+            SolidTrait s = entities.get(i);
+            float dx = s.lastPosition().x - s.getX(), dy = s.lastPosition().y - s.getY();
+
+            s.getHitbox(scratch.r1);
+            float x = scratch.r1.x, y = scratch.r1.y, w = scratch.r1.width, h = scratch.r1.height;
+
+            current[i * 4] = x;
+            current[i * 4 + 1] = y;
+            current[i * 4 + 2] = x + w;
+            current[i * 4 + 3] = y + h;
+
+            last[i * 4] = x + dx;
+            last[i * 4 + 1] = y + dy;
+            last[i * 4 + 2] = w;
+            last[i * 4 + 3] = h;
+
+            swept[i * 4] = Math.min(x, x + dx);
+            swept[i * 4 + 1] = Math.min(y, y + dy);
+            swept[i * 4 + 2] = Math.max(x, x + dx) + w;
+            swept[i * 4 + 3] = Math.max(y, y + dy) + h;
+
+            velocity[i * 2] = -dx;
+            velocity[i * 2 + 1] = -dy;
+
+            position[i * 2] = s.getX();
+            position[i * 2 + 1] = s.getY();
+        }
+    }
+
+    /** Buckets every entity into each tile its swept hitbox touches, using a counting sort. */
+    private void buildTiles(){
+        int size = entities.size;
+
+        float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE;
+        for(int i = 0; i < size; i++){
+            minx = Math.min(minx, swept[i * 4]);
+            miny = Math.min(miny, swept[i * 4 + 1]);
+            maxx = Math.max(maxx, swept[i * 4 + 2]);
+            maxy = Math.max(maxy, swept[i * 4 + 3]);
+        }
+
+        currentTileSize = tileSize;
+        //the product is a long, as one entity far away from the rest makes both counts large
+        while((long) tileCount(maxx - minx) * tileCount(maxy - miny) > maxTiles){
+            currentTileSize *= 2f;
+        }
+
+        tileOriginX = minx;
+        tileOriginY = miny;
+        tilesX = tileCount(maxx - minx);
+        tilesY = tileCount(maxy - miny);
+
+        int tiles = (int) Math.min((long) tilesX * tilesY, maxTiles);
+        if(tileStart.length < tiles + 1){
+            tileStart = new int[tiles + 1];
+        }
+        Arrays.fill(tileStart, 0, tiles + 1, 0);
+
+        int total = 0;
+        for(int i = 0; i < size; i++){
+            int x1 = tile(swept[i * 4], tileOriginX, tilesX), y1 = tile(swept[i * 4 + 1], tileOriginY, tilesY);
+            int x2 = tile(swept[i * 4 + 2], tileOriginX, tilesX), y2 = tile(swept[i * 4 + 3], tileOriginY, tilesY);
+            tileRange[i * 4] = x1;
+            tileRange[i * 4 + 1] = y1;
+            tileRange[i * 4 + 2] = x2;
+            tileRange[i * 4 + 3] = y2;
+
+            for(int ty = y1; ty <= y2; ty++){
+                for(int tx = x1; tx <= x2; tx++){
+                    tileStart[tx + ty * tilesX + 1]++;
+                    total++;
+                }
+            }
+        }
+
+        for(int i = 0; i < tiles; i++){
+            tileStart[i + 1] += tileStart[i];
+        }
+
+        if(tileItems.length < total){
+            tileItems = new int[Math.max(total, tileItems.length * 2)];
+        }
+
+        //each tileStart is advanced to the end of its tile while filling, then shifted back to hold the start again
+        for(int i = 0; i < size; i++){
+            for(int ty = tileRange[i * 4 + 1]; ty <= tileRange[i * 4 + 3]; ty++){
+                for(int tx = tileRange[i * 4]; tx <= tileRange[i * 4 + 2]; tx++){
+                    int t = tx + ty * tilesX;
+                    tileItems[tileStart[t]++] = i;
+                }
+            }
+        }
+
+        for(int i = tiles; i > 0; i--){
+            tileStart[i] = tileStart[i - 1];
+        }
+        tileStart[0] = 0;
+    }
+
+    /** Sorts all chunk results by entity A, then entity B, and calls collision callbacks in that order. */
+    private void deliver(){
+        int total = 0;
+        for(Chunk chunk : chunks){
+            total += chunk.size;
+        }
+
+        if(total == 0) return;
+
+        if(mergeCount.length < sizea + 1){
+            mergeCount = new int[sizea + 1];
+        }
+        if(mergeB.length < total){
+            int cap = Math.max(total, mergeB.length * 2);
+            mergeB = new int[cap];
+            mergeX = new float[cap];
+            mergeY = new float[cap];
+        }
+
+        Arrays.fill(mergeCount, 0, sizea + 1, 0);
+        for(Chunk chunk : chunks){
+            for(int i = 0; i < chunk.size; i++){
+                mergeCount[chunk.a[i] + 1]++;
+            }
+        }
+
+        for(int i = 0; i < sizea; i++){
+            mergeCount[i + 1] += mergeCount[i];
+        }
+
+        for(Chunk chunk : chunks){
+            for(int i = 0; i < chunk.size; i++){
+                int index = mergeCount[chunk.a[i]]++;
+                mergeB[index] = chunk.b[i];
+                mergeX[index] = chunk.x[i];
+                mergeY[index] = chunk.y[i];
+            }
+        }
+
+        //mergeCount[a] is now the end of the pairs for a, and the start of the pairs for a + 1
+        int start = 0;
+        for(int a = 0; a < sizea; a++){
+            int end = mergeCount[a];
+
+            //few pairs per entity, so insertion sort by B is enough
+            for(int i = start + 1; i < end; i++){
+                int b = mergeB[i];
+                float x = mergeX[i], y = mergeY[i];
+                int j = i - 1;
+                while(j >= start && mergeB[j] > b){
+                    mergeB[j + 1] = mergeB[j];
+                    mergeX[j + 1] = mergeX[j];
+                    mergeY[j + 1] = mergeY[j];
+                    j--;
+                }
+                mergeB[j + 1] = b;
+                mergeX[j + 1] = x;
+                mergeY[j + 1] = y;
+            }
+
+            SolidTrait sa = entities.get(a);
+            for(int i = start; i < end; i++){
+                SolidTrait sb = entities.get(mergeB[i]);
+                if(sa.collides(sb) && sb.collides(sa)){
+                    sa.collision(sb, mergeX[i], mergeY[i]);
+                    sb.collision(sa, mergeX[i], mergeY[i]);
+                }
+            }
+
+            start = end;
+        }
+    }
+
+    /** Returns the number of tiles along a length, clamped to just above {@link #maxTiles} so it can't overflow. */
+    private int tileCount(float length){
+        return (int) Math.max(Math.min((long) (length / currentTileSize) + 1, maxTiles + 1), 1);
+    }
+
+    private int tile(float position, float origin, int count){
+        return Math.min((int) ((position - origin) / currentTileSize), count - 1);
+    }
+
+    private static boolean overlaps(float[] a, int i, float[] b, int j){
+        return a[i * 4] < b[j * 4 + 2] && a[i * 4 + 2] > b[j * 4] && a[i * 4 + 1] < b[j * 4 + 3] && a[i * 4 + 3] > b[j * 4 + 1];
+    }
+
+    /** A fixed range of tiles, checked on one worker thread. Owns all the state it writes to. */
+    @SuppressWarnings("serial")
+    private class Chunk extends RecursiveAction{
+        final Rectangle r1 = new Rectangle();
+        final Vector2 l1 = new Vector2();
+        int from, to;
+
+        //results: entity A index, entity B index, collision position
+        int[] a = new int[16], b = new int[16];
+        float[] x = new float[16], y = new float[16];
+        int size;
+
+        void set(int from, int to){
+            this.from = from;
+            this.to = to;
+            this.size = 0;
+        }
+
+        @Override
+        protected void compute(){
+            for(int t = from; t < to; t++){
+                int tx = t % tilesX, ty = t / tilesX;
+                int end = tileStart[t + 1];
+
+                for(int i = tileStart[t]; i < end; i++){
+                    int ea = tileItems[i];
+
+                    for(int j = sameGroup ? i + 1 : tileStart[t]; j < end; j++){
+                        int eb = tileItems[j];
+
+                        if(sameGroup){
+                            //report each unordered pair once, with the first entity from the group first
+                            if(ea == eb) continue;
+                            int first = Math.min(ea, eb), second = Math.max(ea, eb);
+                            if(isTile(first, second, tx, ty) && (overlaps(swept, first, current, second) || overlaps(swept, second, current, first))){
+                                check(first, second);
+                            }
+                        }else if(ea < sizea && eb >= sizea && isTile(ea, eb, tx, ty) && overlaps(swept, ea, current, eb)){
+                            check(ea, eb);
+                        }
+                    }
+                }
+            }
+        }
+
+        /** Pairs that share several tiles are only checked in the first one. */
+        boolean isTile(int ea, int eb, int tx, int ty){
+            return Math.max(tileRange[ea * 4], tileRange[eb * 4]) == tx && Math.max(tileRange[ea * 4 + 1], tileRange[eb * 4 + 1]) == ty;
+        }
+
+        /** Same narrow phase as EntityCollisions#checkCollide, without any entity callbacks. */
+        void check(int ea, int eb){
+            float x1 = last[ea * 4], y1 = last[ea * 4 + 1], w1 = last[ea * 4 + 2], h1 = last[ea * 4 + 3];
+            float x2 = last[eb * 4], y2 = last[eb * 4 + 1], w2 = last[eb * 4 + 2], h2 = last[eb * 4 + 3];
+
+            l1.set(position[ea * 2], position[ea * 2 + 1]);
+
+            boolean overlap = x1 < x2 + w2 && x1 + w1 > x2 && y1 < y2 + h2 && y1 + h1 > y2;
+            if(overlap || EntityCollisions.collide(x1, y1, w1, h1, velocity[ea * 2], velocity[ea * 2 + 1],
+                    x2, y2, w2, h2, velocity[eb * 2], velocity[eb * 2 + 1], l1)){
+                add(ea, eb, l1.x, l1.y);
+            }
+        }
+
+        void add(int ea, int eb, float hx, float hy){
+            if(size >= a.length){
+                a = Arrays.copyOf(a, size * 2);
+                b = Arrays.copyOf(b, size * 2);
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+            }
+            a[size] = ea;
+            b[size] = eb;
+            x[size] = hx;
+            y[size] = hy;
+            size++;
+        }
+    }
+}
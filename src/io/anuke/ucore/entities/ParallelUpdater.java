@@ -0,0 +1,105 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.function.Consumer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Updates the entities of a group on multiple threads. Used through {@link Entities#setParallelUpdater(Consumer)},
+ * and only for groups with {@link EntityGroup#enableParallel()}.
+ * <p>
+ * The entity array is split into fixed chunks. While a chunk is updating, every entity addition, removal or dirty mark made on
+ * its thread is recorded into that chunk's {@link EntityBuffer}. Buffers are then applied on the calling thread in chunk order,
+ * so the resulting add and remove queues are in the same order as they would be with a sequential update.
+ * If an entity's update throws, the recorded changes of every chunk are discarded before the exception is rethrown.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class ParallelUpdater implements Consumer<EntityGroup<?>>{
+    /** Groups smaller than this are updated on the calling thread. */
+    private static final int minParallelSize = 256;
+
+    private final ForkJoinPool pool;
+    private final Chunk[] chunks;
+    private final RecursiveAction root = new RecursiveAction(){
+        @Override
+        protected void compute(){
+            invokeAll(chunks);
+        }
+    };
+    private Array<? extends Entity> entities;
+
+    public ParallelUpdater(ForkJoinPool pool){
+        this.pool = pool;
+        this.chunks = new Chunk[pool.getParallelism() * 4];
+        for(int i = 0; i < chunks.length; i++){
+            chunks[i] = new Chunk();
+        }
+    }
+
+    public ParallelUpdater(){
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Updates every entity in the group. Must be called from the logic thread. */
+    @Override
+    public void accept(EntityGroup<?> group){
+        Array<? extends Entity> all = group.all();
+
+        if(all.size < minParallelSize){
+            for(Entity e : all){
+                e.update();
+            }
+            return;
+        }
+
+        entities = all;
+        for(int i = 0; i < chunks.length; i++){
+            chunks[i].reinitialize();
+            chunks[i].from = all.size * i / chunks.length;
+            chunks[i].to = all.size * (i + 1) / chunks.length;
+        }
+
+        root.reinitialize();
+        try{
+            pool.invoke(root);
+        }catch(RuntimeException | Error e){
+            //a failed update leaves the changes of other chunks half-recorded, so none of them are applied;
+            //chunks that were already running when the exception was thrown are waited for first
+            for(Chunk chunk : chunks){
+                chunk.quietlyJoin();
+                chunk.buffer.clear();
+            }
+            throw e;
+        }finally{
+            entities = null;
+        }
+
+        for(Chunk chunk : chunks){
+            chunk.buffer.flush();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class Chunk extends RecursiveAction{
+        final EntityBuffer buffer = new EntityBuffer();
+        int from, to;
+
+        @Override
+        protected void compute(){
+            EntityBuffer last = EntityGroup.activeBuffer.get();
+            EntityGroup.activeBuffer.set(buffer);
+
+            try{
+                for(int i = from; i < to; i++){
+                    entities.get(i).update();
+                }
+            }finally{
+                EntityGroup.activeBuffer.set(last);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.entities.trait.SolidTrait;
+
+/**
+ * Caller-owned state for {@link EntityQuery} lookups: a result buffer and a scratch rectangle.
+ * <p>
+ * Rectangle queries that take a context never touch shared static state, so threads that each own a context can query
+ * the same group at once, as long as nothing modifies the group's tree while they do.
+ * Nearest-neighbour searches and raycasts don't take a context, and are not thread-safe.
+ * Results are only valid until the context is used for another query.
+ */
+public class QueryContext{
+    /** Results of the last query made with this context. */
+    public final Array<SolidTrait> results = new Array<>();
+    /** Scratch rectangle used for queries by position and size. */
+    public final Rectangle rect = new Rectangle();
+
+    /** Sets the scratch rectangle to a square of the specified size, centered on a point. */
+    public Rectangle rect(float x, float y, float size){
+        return rect.setSize(size).setCenter(x, y);
+    }
+}
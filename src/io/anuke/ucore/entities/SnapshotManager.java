@@ -0,0 +1,230 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.utils.IntIntMap;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.StreamUtils.OptimizedByteArrayOutputStream;
+import io.anuke.ucore.core.Settings;
+import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.function.Consumer;
+import io.anuke.ucore.io.ReusableByteArrayInputStream;
+import io.anuke.ucore.io.TypeSerializer;
+import io.anuke.ucore.io.delta.ByteDeltaEncoder;
+import io.anuke.ucore.io.delta.ByteMatcherHash;
+import io.anuke.ucore.io.delta.DEZDecoder;
+import io.anuke.ucore.io.delta.DEZEncoder;
+import io.anuke.ucore.io.delta.SourceIndex;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the state of an entity group as delta-compressed snapshots.
+ * <p>
+ * The sending side calls {@link #capture()} once per tick, which serializes every entity in the group into a new frame,
+ * and {@link #writeDelta(int, ByteBuffer)} for each receiver. Each delta is a DEZ patch against the last frame that
+ * receiver acknowledged with {@link #acknowledge(int, int)}, or a full frame if there is none in the history.
+ * <p>
+ * The receiving side passes every delta to {@link #readDelta(ByteBuffer)}, acknowledges the frame ID it returns,
+ * and reads the entities back with {@link #read(int, Consumer)}.
+ * <p>
+ * Both sides keep a ring of the most recent frames, which must be large enough to cover the round trip of acknowledgements.
+ * Frames are serialized as the entity count followed by each entity, using the type serializer of the group.
+ */
+public class SnapshotManager<T extends Entity>{
+    private final EntityGroup<T> group;
+    private final TypeSerializer<T> serializer;
+    private final Frame[] frames;
+    private final Frame empty = new Frame();
+    private int latest = -1;
+
+    /** Last acknowledged frame of each receiver. */
+    private final IntIntMap acks = new IntIntMap();
+    /** Patches of the latest frame, by base frame, as receivers often acknowledge the same frame. */
+    private final IntMap<byte[]> patches = new IntMap<>();
+
+    private final DEZEncoder encoder = new DEZEncoder();
+    private final DEZDecoder decoder = new DEZDecoder();
+    private final OptimizedByteArrayOutputStream byteStream = new OptimizedByteArrayOutputStream(256);
+    private final DataOutputStream dataOutput = new DataOutputStream(byteStream);
+    private final ReusableByteArrayInputStream byteInputStream = new ReusableByteArrayInputStream();
+    private final DataInputStream dataInput = new DataInputStream(byteInputStream);
+
+    /** Creates a manager that uses the serializer registered in {@link Settings} for the group's type. */
+    @SuppressWarnings("unchecked")
+    public SnapshotManager(EntityGroup<T> group, int history){
+        this(group, (TypeSerializer<T>) Settings.getSerializer(group.getType()), history);
+    }
+
+    /** @param history How many recent frames are kept on each side. */
+    public SnapshotManager(EntityGroup<T> group, TypeSerializer<T> serializer, int history){
+        if(serializer == null) throw new IllegalArgumentException(group.getType() + " does not have a serializer registered!");
+        if(history < 1) throw new IllegalArgumentException("History must contain at least one frame!");
+
+        this.group = group;
+        this.serializer = serializer;
+        this.frames = new Frame[history];
+        for(int i = 0; i < history; i++){
+            frames[i] = new Frame();
+        }
+        empty.set(-1, new byte[0], 0);
+    }
+
+    /** Serializes all entities in the group as a new frame, and returns its ID. */
+    public int capture(){
+        byteStream.reset();
+        try{
+            dataOutput.writeInt(group.size());
+            for(T entity : group.all()){
+                serializer.write(dataOutput, entity);
+            }
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+
+        latest++;
+        patches.clear();
+        frames[index(latest)].set(latest, byteStream.getBuffer(), byteStream.size());
+        return latest;
+    }
+
+    /** Returns the ID of the latest frame that was captured or read, or -1 if there is none. */
+    public int getLatestFrame(){
+        return latest;
+    }
+
+    /** Records that a receiver has a frame, so later deltas can be made against it. Older frames are ignored. */
+    public void acknowledge(int receiver, int frame){
+        if(frame > acks.get(receiver, -1)){
+            acks.put(receiver, frame);
+        }
+    }
+
+    /** Forgets a receiver, for example when it disconnects. Its next delta will be a full frame. */
+    public void removeReceiver(int receiver){
+        acks.remove(receiver, -1);
+    }
+
+    /**
+     * Writes the latest frame to a buffer, as a delta against the last frame the receiver acknowledged.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeDelta(int receiver, ByteBuffer out){
+        if(latest == -1) throw new IllegalStateException("No frame has been captured yet!");
+
+        Frame base = frame(acks.get(receiver, -1));
+        Frame target = frame(latest);
+        if(base == null) base = empty;
+
+        byte[] patch = patches.get(base.id);
+        if(patch == null){
+            patch = ByteDeltaEncoder.toDiff(new ByteMatcherHash(base.index(), target.data), encoder);
+            patches.put(base.id, patch);
+        }
+
+        int position = out.position();
+        out.putInt(target.id);
+        out.putInt(base.id);
+        out.putInt(patch.length);
+        out.put(patch);
+        return out.position() - position;
+    }
+
+    /**
+     * Reads a delta written by {@link #writeDelta(int, ByteBuffer)} and stores the frame it contains.
+     *
+     * Deltas of frames that are already stored are skipped. Deltas that arrive so late that their frame would be older
+     * than every frame in the history are skipped as well, so they never replace a newer frame.
+     *
+     * @return The ID of the frame, or -1 if the delta was too old and was skipped.
+     * @throws IOException if the delta is corrupt, or its base frame is no longer in the history.
+     */
+    public int readDelta(ByteBuffer in) throws IOException{
+        int id = in.getInt();
+        int baseID = in.getInt();
+        int length = in.getInt();
+
+        if(id < 0) throw new IOException("Invalid frame ID: " + id);
+        if(length < 0 || length > in.remaining()) throw new IOException("Invalid delta length: " + length);
+
+        Frame slot = frames[index(id)];
+        if(id <= latest - frames.length || slot.id >= id){
+            in.position(in.position() + length);
+            return slot.id == id ? id : -1;
+        }
+
+        Frame base = baseID == -1 ? empty : frame(baseID);
+        if(base == null) throw new IOException("Base frame " + baseID + " is no longer available!");
+
+        int limit = in.limit();
+        in.limit(in.position() + length);
+        try{
+            //the base may be in the slot that is overwritten, so this can't decode into the slot directly
+            decoder.init(base.buffer(), in);
+            byte[] data = decoder.decode();
+            slot.set(id, data, decoder.getDecodedLength());
+        }finally{
+            in.position(in.limit());
+            in.limit(limit);
+        }
+
+        latest = Math.max(latest, id);
+        return id;
+    }
+
+    /**
+     * Deserializes every entity in a frame that was captured or read.
+     *
+     * @throws IOException if the frame is not in the history, or can't be deserialized.
+     */
+    public void read(int frame, Consumer<T> cons) throws IOException{
+        Frame f = frame(frame);
+        if(f == null) throw new IOException("Frame " + frame + " is no longer available!");
+
+        byteInputStream.setBytes(f.data);
+        int count = dataInput.readInt();
+        for(int i = 0; i < count; i++){
+            cons.accept(serializer.read(dataInput));
+        }
+    }
+
+    /** Returns the stored frame with an ID, or null if it isn't in the history. */
+    private Frame frame(int id){
+        if(id < 0) return null;
+        Frame frame = frames[index(id)];
+        return frame.id == id ? frame : null;
+    }
+
+    private int index(int id){
+        return id % frames.length;
+    }
+
+    private static class Frame{
+        int id = -1;
+        byte[] data = {};
+        ByteBuffer buffer;
+        SourceIndex index;
+
+        /** Stores a copy of the data, reusing the old array if it has the same size. */
+        void set(int id, byte[] bytes, int length){
+            if(data.length != length) data = new byte[length];
+            if(bytes != data) System.arraycopy(bytes, 0, data, 0, length);
+            this.id = id;
+            this.buffer = null;
+            this.index = null;
+        }
+
+        /** The index is only built when a receiver needs a delta against this frame, and is then shared by all of them. */
+        SourceIndex index(){
+            if(index == null) index = new SourceIndex(data);
+            return index;
+        }
+
+        ByteBuffer buffer(){
+            if(buffer == null) buffer = ByteBuffer.wrap(data);
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IdentityMap;
+import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.entities.trait.SolidTrait;
+import io.anuke.ucore.function.BiConsumer;
+
+import java.util.Arrays;
+
+/**
+ * Sort-and-sweep broadphase for collisions between two groups.
+ * <p>
+ * Entities are kept sorted on the x-axis by their swept hitbox (from their last position to their current one).
+ * The order is kept between frames, so since entities only move a little each frame, the insertion sort is close to O(n).
+ * Every pair of overlapping boxes is then found with a single sweep along the sorted list.
+ */
+public class SweepAndPrune{
+    private final Rectangle r1 = new Rectangle();
+    private final Rectangle r2 = new Rectangle();
+    /**
+     * Tracks which entities are still in either group. Keyed on identity rather than ID, as IDs may be reused by
+     * new entities while the old ones are still tracked.
+     */
+    private final IdentityMap<SolidTrait, Mark> marks = new IdentityMap<>();
+    /** Marks of removed entries, reused for new ones. */
+    private final Array<Mark> freeMarks = new Array<>();
+    private int frame;
+
+    private SolidTrait[] items = new SolidTrait[16];
+    /** Swept bounds, 4 per entry: x1, x2, y1, y2. */
+    private float[] bounds = new float[16 * 4];
+    /** 0 if an entry is in the first group, 1 if it is in the second. */
+    private byte[] sides = new byte[16];
+    private int size;
+
+    /**
+     * Updates the entries and their sorted order to match the current contents and positions of both groups.
+     * If both groups are the same, every entity can collide with every other entity.
+     */
+    public void update(EntityGroup<?> groupa, EntityGroup<?> groupb){
+        frame++;
+
+        mark(groupa, 0);
+        if(groupb != groupa){
+            mark(groupb, 1);
+        }
+
+        //remove entries that are no longer in either group, keeping the order of the rest
+        int kept = 0;
+        for(int i = 0; i < size; i++){
+            SolidTrait s = items[i];
+            Mark mark = marks.get(s);
+            if(mark.frame == frame){
+                items[kept] = s;
+                sides[kept] = mark.side;
+                kept++;
+            }else{
+                freeMarks.add(marks.remove(s));
+            }
+        }
+        Arrays.fill(items, kept, size, null);
+        size = kept;
+
+        for(int i = 0; i < size; i++){
+            updateBounds(i);
+        }
+
+        //insertion sort on x; nearly sorted after the first frame
+        for(int i = 1; i < size; i++){
+            if(bounds[i * 4] >= bounds[(i - 1) * 4]) continue;
+
+            SolidTrait item = items[i];
+            byte side = sides[i];
+            float x1 = bounds[i * 4], x2 = bounds[i * 4 + 1], y1 = bounds[i * 4 + 2], y2 = bounds[i * 4 + 3];
+
+            int j = i - 1;
+            while(j >= 0 && bounds[j * 4] > x1){
+                items[j + 1] = items[j];
+                sides[j + 1] = sides[j];
+                System.arraycopy(bounds, j * 4, bounds, (j + 1) * 4, 4);
+                j--;
+            }
+
+            items[j + 1] = item;
+            sides[j + 1] = side;
+            bounds[(j + 1) * 4] = x1;
+            bounds[(j + 1) * 4 + 1] = x2;
+            bounds[(j + 1) * 4 + 2] = y1;
+            bounds[(j + 1) * 4 + 3] = y2;
+        }
+    }
+
+    /**
+     * Calls the consumer for every pair of entries whose swept bounds overlap.
+     * The first argument is always from the first group. If both groups are the same, each pair is only reported once.
+     */
+    public void pairs(boolean sameGroup, BiConsumer<SolidTrait, SolidTrait> cons){
+        for(int i = 0; i < size; i++){
+            float x2 = bounds[i * 4 + 1], y1 = bounds[i * 4 + 2], y2 = bounds[i * 4 + 3];
+
+            for(int j = i + 1; j < size && bounds[j * 4] < x2; j++){
+                if(!sameGroup && sides[i] == sides[j]) continue;
+                if(bounds[j * 4 + 2] >= y2 || bounds[j * 4 + 3] <= y1) continue;
+
+                if(sides[i] == 0){
+                    cons.accept(items[i], items[j]);
+                }else{
+                    cons.accept(items[j], items[i]);
+                }
+            }
+        }
+    }
+
+    /** Removes all entries. */
+    public void clear(){
+        Arrays.fill(items, 0, size, null);
+        for(Mark mark : marks.values()){
+            freeMarks.add(mark);
+        }
+        marks.clear();
+        size = 0;
+    }
+
+    /** Returns the number of entries currently being tracked. */
+    public int size(){
+        return size;
+    }
+
+    private void mark(EntityGroup<?> group, int side){
+        for(Entity entity : group.all()){
+            if(!(entity instanceof SolidTrait)) continue;
+
+            Mark mark = marks.get((SolidTrait) entity);
+            if(mark == null){
+                mark = freeMarks.size > 0 ? freeMarks.pop() : new Mark();
+                marks.put((SolidTrait) entity, mark);
+                add((SolidTrait) entity);
+            }
+            mark.frame = frame;
+            mark.side = (byte) side;
+        }
+    }
+
+    private void add(SolidTrait entity){
+        if(size >= items.length){
+            int cap = items.length * 2;
+            items = Arrays.copyOf(items, cap);
+            bounds = Arrays.copyOf(bounds, cap * 4);
+            sides = Arrays.copyOf(sides, cap);
+        }
+        items[size++] = entity;
+    }
+
+    private void updateBounds(int i){
+        SolidTrait solid = items[i];
+
+        solid.getHitbox(r1);
+        r1.x += (solid.lastPosition().x - solid.getX());
+        r1.y += (solid.lastPosition().y - solid.getY());
+
+        solid.getHitbox(r2);
+        r2.merge(r1);
+
+        bounds[i * 4] = r2.x;
+        bounds[i * 4 + 1] = r2.x + r2.width;
+        bounds[i * 4 + 2] = r2.y;
+        bounds[i * 4 + 3] = r2.y + r2.height;
+    }
+
+    /** The last frame an entity was seen in either group, and the side of that group. */
+    private static class Mark{
+        int frame;
+        byte side;
+    }
+}
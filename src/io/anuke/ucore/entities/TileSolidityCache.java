@@ -0,0 +1,132 @@
+package io.anuke.ucore.entities;
+
+import com.badlogic.gdx.math.Rectangle;
+import io.anuke.ucore.entities.EntityCollisions.TileCollider;
+import io.anuke.ucore.entities.EntityCollisions.TileHitboxProvider;
+import io.anuke.ucore.util.GridBits;
+
+/**
+ * Caches tile solidity in a bitmap and tile hitboxes in a flat table, so tile collision checks don't call the collider
+ * and hitbox provider for every tile. Created with {@link EntityCollisions#cacheTiles(int, int)}.
+ * <p>
+ * Tiles that change must be invalidated; invalidated tiles are read again from the collider before the next collision check.
+ * Invalidation is tracked per chunk of {@link #chunkSize} by {@link #chunkSize} tiles, so edits far apart from each other
+ * only refresh the chunks they touch. Tiles outside the cached area are always passed to the collider.
+ */
+public class TileSolidityCache{
+    /** Width and height of the chunks that are marked as changed. */
+    public static final int chunkSize = 16;
+
+    private final TileCollider collider;
+    private final TileHitboxProvider provider;
+    private final int width, height;
+    private final GridBits solid;
+    /** Hitboxes of solid tiles: x, y, width, height. */
+    private final float[] hitboxes;
+    private final Rectangle rect = new Rectangle();
+
+    /** Chunks with tiles that need to be read again. */
+    private final GridBits dirtyChunks;
+    private boolean dirty;
+
+    public TileSolidityCache(int width, int height, TileCollider collider, TileHitboxProvider provider){
+        this.width = width;
+        this.height = height;
+        this.collider = collider;
+        this.provider = provider;
+        this.solid = new GridBits(width, height);
+        this.hitboxes = new float[width * height * 4];
+        this.dirtyChunks = new GridBits((width + chunkSize - 1) / chunkSize, (height + chunkSize - 1) / chunkSize);
+
+        invalidateAll();
+        refresh();
+    }
+
+    /** Marks a tile as changed. */
+    public void invalidate(int x, int y){
+        invalidate(x, y, x, y);
+    }
+
+    /** Marks every tile in a region as changed. Coordinates are inclusive. */
+    public void invalidate(int x1, int y1, int x2, int y2){
+        x1 = Math.max(x1, 0);
+        y1 = Math.max(y1, 0);
+        x2 = Math.min(x2, width - 1);
+        y2 = Math.min(y2, height - 1);
+        if(x1 > x2 || y1 > y2) return;
+
+        for(int cy = y1 / chunkSize; cy <= y2 / chunkSize; cy++){
+            for(int cx = x1 / chunkSize; cx <= x2 / chunkSize; cx++){
+                dirtyChunks.set(cx, cy, true);
+            }
+        }
+        dirty = true;
+    }
+
+    /** Marks every tile as changed, for example after a new map is loaded. */
+    public void invalidateAll(){
+        invalidate(0, 0, width - 1, height - 1);
+    }
+
+    /** Reads all invalidated tiles from the collider again. Called automatically before collision checks. */
+    public void refresh(){
+        if(!dirty) return;
+        dirty = false;
+
+        for(int cy = 0; cy < dirtyChunks.height(); cy++){
+            for(int cx = 0; cx < dirtyChunks.width(); cx++){
+                if(dirtyChunks.get(cx, cy)){
+                    dirtyChunks.set(cx, cy, false);
+                    refreshChunk(cx, cy);
+                }
+            }
+        }
+    }
+
+    private void refreshChunk(int cx, int cy){
+        int x1 = cx * chunkSize, y1 = cy * chunkSize;
+        int x2 = Math.min(x1 + chunkSize, width) - 1, y2 = Math.min(y1 + chunkSize, height) - 1;
+
+        for(int y = y1; y <= y2; y++){
+            for(int x = x1; x <= x2; x++){
+                boolean s = collider.solid(x, y);
+                solid.set(x, y, s);
+
+                if(s){
+                    int i = (x + y * width) * 4;
+                    provider.getHitbox(x, y, rect);
+                    hitboxes[i] = rect.x;
+                    hitboxes[i + 1] = rect.y;
+                    hitboxes[i + 2] = rect.width;
+                    hitboxes[i + 3] = rect.height;
+                }
+            }
+        }
+    }
+
+    public boolean solid(int x, int y){
+        if(x < 0 || y < 0 || x >= width || y >= height){
+            return collider.solid(x, y);
+        }
+        return solid.get(x, y);
+    }
+
+    /** Gets the hitbox of a tile. Only valid for solid tiles. */
+    public void getHitbox(int x, int y, Rectangle out){
+        if(x < 0 || y < 0 || x >= width || y >= height){
+            provider.getHitbox(x, y, out);
+            return;
+        }
+
+        int i = (x + y * width) * 4;
+        out.set(hitboxes[i], hitboxes[i + 1], hitboxes[i + 2], hitboxes[i + 3]);
+    }
+
+    public int width(){
+        return width;
+    }
+
+    public int height(){
+        return height;
+    }
+}
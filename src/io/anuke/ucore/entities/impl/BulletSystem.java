@@ -0,0 +1,370 @@
+package io.anuke.ucore.entities.impl;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import io.anuke.ucore.core.Timers;
+import io.anuke.ucore.entities.EntityCollisions;
+import io.anuke.ucore.entities.EntityGroup;
+import io.anuke.ucore.entities.trait.Entity;
+import io.anuke.ucore.entities.trait.SolidTrait;
+import io.anuke.ucore.function.Supplier;
+
+import java.util.Arrays;
+
+/**
+ * Stores large amounts of bullets in primitive arrays instead of as individual {@link BulletEntity} objects.
+ * <p>
+ * Movement, drag and lifetime are processed in tight loops over these arrays. {@link BaseBulletType} callbacks are still called,
+ * with a single reused bullet entity that is loaded with the values of the current bullet. That entity must not be stored.
+ * Calling remove() on it from a callback removes the current bullet.
+ * <p>
+ * Bullets added from a callback, such as fragments spawned on a hit, are queued and added once the current pass
+ * ({@link #update()}, {@link #collide(EntityGroup)}, {@link #draw()} or another add) is finished.
+ * They are not processed by the pass that added them.
+ *
+ * @param <T> The bullet entity type passed to bullet type callbacks.
+ */
+public class BulletSystem<T extends BulletEntity>{
+    private final T view;
+    private final RemovalMarker marker = new RemovalMarker();
+    private final Rectangle r1 = new Rectangle();
+    private final Rectangle r2 = new Rectangle();
+    private final Vector2 hit = new Vector2();
+    private final Array<SolidTrait> arrOut = new Array<>();
+    private boolean typeUpdates = true;
+
+    //registered bullet types, with values cached every update
+    private final Array<BaseBulletType> types = new Array<>();
+    private final ObjectIntMap<BaseBulletType> typeIDs = new ObjectIntMap<>();
+    private float[] lifetimes = new float[8], drags = new float[8], hitSizes = new float[8];
+
+    //bullet data
+    private float[] x = new float[64], y = new float[64];
+    private float[] lastX = new float[64], lastY = new float[64];
+    private float[] velocityX = new float[64], velocityY = new float[64];
+    private float[] time = new float[64];
+    private int[] type = new int[64];
+    private Entity[] owner = new Entity[64];
+    private int size;
+
+    //bullets added while a pass is running: x, y, velocity x, velocity y for each
+    private final Array<BaseBulletType<T>> pendingTypes = new Array<>();
+    private final Array<Entity> pendingOwners = new Array<>();
+    private final FloatArray pendingValues = new FloatArray();
+    /** Depth of running passes over the bullets. Bullets are only added directly when this is 0. */
+    private int passes;
+
+    /** @param view Creates the bullet entity that is reused for all type callbacks. */
+    public BulletSystem(Supplier<T> view){
+        this.view = view.get();
+    }
+
+    /**
+     * Sets whether {@link BaseBulletType#update(BulletEntity)} is called for each bullet every frame. True by default.
+     * Disabling this is much faster if none of the types use the update callback.
+     */
+    public void setTypeUpdates(boolean typeUpdates){
+        this.typeUpdates = typeUpdates;
+    }
+
+    /** Creates a bullet moving at its type's speed in the specified direction. */
+    public void add(BaseBulletType<T> type, Entity owner, float x, float y, float angle){
+        float speed = type.speed();
+        add(type, owner, x, y, MathUtils.cosDeg(angle) * speed, MathUtils.sinDeg(angle) * speed);
+    }
+
+    /**
+     * Creates a bullet with the specified velocity. Calls {@link BaseBulletType#init(BulletEntity)}.
+     * If called from a callback, the bullet is added after the current pass.
+     */
+    public void add(BaseBulletType<T> type, Entity owner, float x, float y, float velocityX, float velocityY){
+        if(passes > 0){
+            pendingTypes.add(type);
+            pendingOwners.add(owner);
+            pendingValues.add(x, y, velocityX, velocityY);
+            return;
+        }
+
+        passes++;
+        try{
+            insert(type, owner, x, y, velocityX, velocityY);
+        }finally{
+            passes--;
+        }
+        addPending();
+    }
+
+    private void insert(BaseBulletType<T> type, Entity owner, float x, float y, float velocityX, float velocityY){
+        if(size >= this.x.length){
+            int cap = size * 2;
+            this.x = Arrays.copyOf(this.x, cap);
+            this.y = Arrays.copyOf(this.y, cap);
+            lastX = Arrays.copyOf(lastX, cap);
+            lastY = Arrays.copyOf(lastY, cap);
+            this.velocityX = Arrays.copyOf(this.velocityX, cap);
+            this.velocityY = Arrays.copyOf(this.velocityY, cap);
+            time = Arrays.copyOf(time, cap);
+            this.type = Arrays.copyOf(this.type, cap);
+            this.owner = Arrays.copyOf(this.owner, cap);
+        }
+
+        int i = size++;
+        this.x[i] = lastX[i] = x;
+        this.y[i] = lastY[i] = y;
+        this.velocityX[i] = velocityX;
+        this.velocityY[i] = velocityY;
+        this.time[i] = 0f;
+        this.type[i] = typeID(type);
+        this.owner[i] = owner;
+
+        load(i);
+        type.init(view);
+        if(marker.removed){
+            removeIndex(i);
+        }else{
+            store(i);
+        }
+    }
+
+    /** Moves all bullets, applies drag and despawns bullets that have exceeded their lifetime. */
+    public void update(){
+        float delta = Timers.delta();
+
+        for(int t = 0; t < types.size; t++){
+            BaseBulletType type = types.get(t);
+            lifetimes[t] = type.lifetime();
+            drags[t] = type.drag();
+            hitSizes[t] = type.hitSize();
+        }
+
+        passes++;
+        try{
+            updateBullets(delta);
+        }finally{
+            passes--;
+        }
+        addPending();
+    }
+
+    private void updateBullets(float delta){
+        if(typeUpdates){
+            for(int i = size - 1; i >= 0; i--){
+                load(i);
+                types.get(type[i]).update(view);
+                if(marker.removed){
+                    removeIndex(i);
+                }else{
+                    store(i);
+                }
+            }
+        }
+
+        for(int i = 0; i < size; i++){
+            lastX[i] = x[i];
+            lastY[i] = y[i];
+            x[i] += velocityX[i] * delta;
+            y[i] += velocityY[i] * delta;
+
+            float scl = 1f - drags[type[i]] * delta;
+            velocityX[i] *= scl;
+            velocityY[i] *= scl;
+
+            time[i] = Math.min(time[i] + delta, lifetimes[type[i]]);
+        }
+
+        for(int i = size - 1; i >= 0; i--){
+            if(time[i] >= lifetimes[type[i]]){
+                load(i);
+                types.get(type[i]).despawned(view);
+                removeIndex(i);
+            }
+        }
+    }
+
+    /**
+     * Checks every bullet against the solid entities of a group, using the group's tree and the same swept test as entity collisions.
+     * On a hit, the target's collision() and the bullet entity's collision() are called, which calls {@link BaseBulletType#hit(BulletEntity, float, float)}.
+     */
+    public void collide(EntityGroup<?> group){
+        if(!group.useTree()) throw new RuntimeException("This group does not support quadtrees! Enable quadtrees when creating it.");
+
+        passes++;
+        try{
+            collideBullets(group);
+        }finally{
+            passes--;
+        }
+        addPending();
+    }
+
+    private void collideBullets(EntityGroup<?> group){
+        for(int i = size - 1; i >= 0; i--){
+            float half = hitSizes[type[i]] / 2f;
+            float minx = Math.min(x[i], lastX[i]) - half, miny = Math.min(y[i], lastY[i]) - half;
+            r1.set(minx, miny, Math.max(x[i], lastX[i]) + half - minx, Math.max(y[i], lastY[i]) + half - miny);
+
+            arrOut.clear();
+            group.solidTree().getIntersect(arrOut, r1);
+            if(arrOut.size == 0) continue;
+
+            load(i);
+            for(int j = 0; j < arrOut.size; j++){
+                SolidTrait target = arrOut.get(j);
+                target.getHitbox(r2);
+                if(!r1.overlaps(r2) || !view.collides(target) || !target.collides(view)) continue;
+
+                if(checkHit(i, target)){
+                    target.collision(view, hit.x, hit.y);
+                    view.collision(target, hit.x, hit.y);
+
+                    if(marker.removed){
+                        break;
+                    }
+                }
+            }
+
+            if(marker.removed){
+                removeIndex(i);
+            }else{
+                store(i);
+            }
+        }
+    }
+
+    /** Calls {@link BaseBulletType#draw(BulletEntity)} for every bullet. */
+    public void draw(){
+        passes++;
+        try{
+            for(int i = 0; i < size; i++){
+                load(i);
+                types.get(type[i]).draw(view);
+            }
+        }finally{
+            passes--;
+        }
+        addPending();
+    }
+
+    /** Removes all bullets without calling any callbacks, including those waiting to be added. */
+    public void clear(){
+        Arrays.fill(owner, 0, size, null);
+        size = 0;
+        clearPending();
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /** Adds the bullets that were queued during a pass. Bullets queued by their init() are added in the same call. */
+    private void addPending(){
+        if(passes > 0 || pendingTypes.size == 0) return;
+
+        passes++;
+        try{
+            for(int p = 0; p < pendingTypes.size; p++){
+                float[] values = pendingValues.items;
+                insert(pendingTypes.get(p), pendingOwners.get(p), values[p * 4], values[p * 4 + 1], values[p * 4 + 2], values[p * 4 + 3]);
+            }
+        }finally{
+            passes--;
+            clearPending();
+        }
+    }
+
+    private void clearPending(){
+        pendingTypes.clear();
+        pendingOwners.clear();
+        pendingValues.clear();
+    }
+
+    private boolean checkHit(int i, SolidTrait target){
+        float half = hitSizes[type[i]] / 2f;
+        float vx = x[i] - lastX[i], vy = y[i] - lastY[i];
+
+        target.getHitbox(r2);
+        float tvx = target.getX() - target.lastPosition().x, tvy = target.getY() - target.lastPosition().y;
+        r2.x -= tvx;
+        r2.y -= tvy;
+
+        float bx = lastX[i] - half, by = lastY[i] - half, bsize = half * 2f;
+
+        hit.set(x[i], y[i]);
+        return (bx < r2.x + r2.width && bx + bsize > r2.x && by < r2.y + r2.height && by + bsize > r2.y) ||
+            EntityCollisions.collide(bx, by, bsize, bsize, vx, vy, r2.x, r2.y, r2.width, r2.height, tvx, tvy, hit);
+    }
+
+    private int typeID(BaseBulletType type){
+        int id = typeIDs.get(type, -1);
+        if(id == -1){
+            id = types.size;
+            types.add(type);
+            typeIDs.put(type, id);
+
+            if(id >= lifetimes.length){
+                lifetimes = Arrays.copyOf(lifetimes, id * 2);
+                drags = Arrays.copyOf(drags, id * 2);
+                hitSizes = Arrays.copyOf(hitSizes, id * 2);
+            }
+            lifetimes[id] = type.lifetime();
+            drags[id] = type.drag();
+            hitSizes[id] = type.hitSize();
+        }
+        return id;
+    }
+
+    /** Copies a bullet's values into the view entity. */
+    private void load(int i){
+        view.type = types.get(type[i]);
+        view.owner = owner[i];
+        view.x = x[i];
+        view.y = y[i];
+        view.velocity.set(velocityX[i], velocityY[i]);
+        view.lastPosition().set(lastX[i], lastY[i]);
+        view.time = time[i];
+        view.setGroup(marker);
+        marker.removed = false;
+    }
+
+    /** Copies values that callbacks may have changed back from the view entity. */
+    private void store(int i){
+        x[i] = view.x;
+        y[i] = view.y;
+        velocityX[i] = view.velocity.x;
+        velocityY[i] = view.velocity.y;
+        time[i] = view.time;
+    }
+
+    /** Removes a bullet by moving the last bullet into its place. */
+    private void removeIndex(int i){
+        int last = --size;
+        x[i] = x[last];
+        y[i] = y[last];
+        lastX[i] = lastX[last];
+        lastY[i] = lastY[last];
+        velocityX[i] = velocityX[last];
+        velocityY[i] = velocityY[last];
+        time[i] = time[last];
+        type[i] = type[last];
+        owner[i] = owner[last];
+        owner[last] = null;
+    }
+
+    /** Placeholder group of the view entity, used to find out whether a callback removed the current bullet. */
+    private static class RemovalMarker extends EntityGroup{
+        boolean removed;
+
+        RemovalMarker(){
+            super(BulletEntity.class, false);
+        }
+
+        @Override
+        public void remove(Entity type){
+            removed = true;
+        }
+    }
+}
@@ -38,6 +38,16 @@ public interface Entity extends PosTrait, MoveTrait{
 
     void setGroup(EntityGroup group);
 
+    /**Returns the index of this entity in its group's internal array, or -1 if this is not tracked.
+     * Used for constant-time removal; implementations that don't store it fall back to a linear search.*/
+    default int getGroupIndex(){
+        return -1;
+    }
+
+    /**Sets the index of this entity in its group's internal array. Should only be called by the group.*/
+    default void setGroupIndex(int index){
+    }
+
     default boolean isAdded(){
         return getGroup() != null;
     }
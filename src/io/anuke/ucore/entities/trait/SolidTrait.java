@@ -25,6 +25,14 @@ public interface SolidTrait extends QuadTreeObject, PosTrait, MoveTrait, Velocit
         return false;
     }
 
+    /**
+     * Whether tile collisions for this entity are resolved in one swept pass instead of in 1-unit steps.
+     * This is much faster for entities that move several units per frame; see {@link io.anuke.ucore.entities.EntityCollisions#moveSwept(SolidTrait, float, float)}.
+     */
+    default boolean continuousTileCollision(){
+        return false;
+    }
+
     default boolean collides(SolidTrait other){
         return true;
     }
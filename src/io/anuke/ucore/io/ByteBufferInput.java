@@ -1,11 +1,23 @@
 package io.anuke.ucore.io;
 
 import java.io.DataInput;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
-/** DataInput wrapper of ByteBuffer. */
+/**
+ * DataInput wrapper of ByteBuffer.
+ * Reads everything written by {@link ByteBufferOutput}. Strings are decoded through a reused scratch buffer,
+ * and short strings that were read before are returned from a small cache instead of being decoded again.
+ */
 public class ByteBufferInput implements DataInput{
+    /** Strings of at most this many bytes are cached. */
+    private static final int maxCachedLength = 32;
+    private static final int cacheSize = 256;
+
     private ByteBuffer buffer;
+    private char[] chars = new char[64];
+    private String[] cachedStrings;
+    private byte[][] cachedBytes;
 
     /** Wraps the specified ByteBuffer. */
     public ByteBufferInput(ByteBuffer buffer){
@@ -20,25 +32,30 @@ public class ByteBufferInput implements DataInput{
         this.buffer = buffer;
     }
 
+    public ByteBuffer getBuffer(){
+        return buffer;
+    }
+
     @Override
     public void readFully(byte[] bytes){
-        throw new RuntimeException("Stub!");
+        buffer.get(bytes);
     }
 
     @Override
     public void readFully(byte[] bytes, int i, int i1){
-        throw new RuntimeException("Stub!");
+        buffer.get(bytes, i, i1);
     }
 
     @Override
     public int skipBytes(int i){
+        i = Math.min(i, buffer.remaining());
         buffer.position(buffer.position() + i);
         return i;
     }
 
     @Override
     public boolean readBoolean(){
-        return buffer.get() == 1;
+        return buffer.get() != 0;
     }
 
     @Override
@@ -48,7 +65,7 @@ public class ByteBufferInput implements DataInput{
 
     @Override
     public int readUnsignedByte(){
-        return buffer.get() + 128;
+        return buffer.get() & 0xff;
     }
 
     @Override
@@ -58,7 +75,7 @@ public class ByteBufferInput implements DataInput{
 
     @Override
     public int readUnsignedShort(){
-        return buffer.getShort() + -((int) Short.MIN_VALUE);
+        return buffer.getShort() & 0xffff;
     }
 
     @Override
@@ -86,16 +103,215 @@ public class ByteBufferInput implements DataInput{
         return buffer.getDouble();
     }
 
+    /** Reads bytes as chars up to the next line terminator, which is not included. Returns null at the end of the buffer. */
     @Override
     public String readLine(){
-        throw new RuntimeException("Stub!");
+        if(!buffer.hasRemaining()) return null;
+
+        int length = 0;
+        while(buffer.hasRemaining()){
+            char c = (char) (buffer.get() & 0xff);
+            if(c == '\n') break;
+            if(c == '\r'){
+                if(buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') buffer.get();
+                break;
+            }
+
+            ensureChars(length + 1);
+            chars[length++] = c;
+        }
+        return new String(chars, 0, length);
     }
 
+    /**
+     * Reads a string written by {@link ByteBufferOutput#writeUTF(String)}: a short length followed by UTF-8 bytes.
+     *
+     * @throws IOException if the length is negative or longer than the remaining bytes, as it is in corrupt data.
+     */
     @Override
-    public String readUTF(){
-        short length = buffer.getShort();
-        byte[] bytes = new byte[length];
+    public String readUTF() throws IOException{
+        int length = buffer.getShort();
+        if(length < 0 || length > buffer.remaining()){
+            throw new IOException("Invalid string length: " + length + ", with " + buffer.remaining() + " bytes remaining");
+        }
+        if(length <= maxCachedLength){
+            return readCached(length);
+        }
+        return decode(length);
+    }
+
+    /** Reads an unsigned int written by {@link ByteBufferOutput#writeVarInt(int)}. */
+    public int readVarInt(){
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed variable-length int!");
+    }
+
+    /** Reads an int written by {@link ByteBufferOutput#writeSignedVarInt(int)}. */
+    public int readSignedVarInt(){
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Reads an unsigned long written by {@link ByteBufferOutput#writeVarLong(long)}. */
+    public long readVarLong(){
+        long value = 0;
+        for(int shift = 0; shift < 70; shift += 7){
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if(b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed variable-length long!");
+    }
+
+    /** Reads a long written by {@link ByteBufferOutput#writeSignedVarLong(long)}. */
+    public long readSignedVarLong(){
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public void readShorts(short[] values, int offset, int length){
+        if(length >= ByteBufferOutput.bulkThreshold){
+            buffer.asShortBuffer().get(values, offset, length);
+            buffer.position(buffer.position() + length * 2);
+        }else{
+            for(int i = offset; i < offset + length; i++) values[i] = buffer.getShort();
+        }
+    }
+
+    public void readInts(int[] values, int offset, int length){
+        if(length >= ByteBufferOutput.bulkThreshold){
+            buffer.asIntBuffer().get(values, offset, length);
+            buffer.position(buffer.position() + length * 4);
+        }else{
+            for(int i = offset; i < offset + length; i++) values[i] = buffer.getInt();
+        }
+    }
+
+    public void readLongs(long[] values, int offset, int length){
+        if(length >= ByteBufferOutput.bulkThreshold){
+            buffer.asLongBuffer().get(values, offset, length);
+            buffer.position(buffer.position() + length * 8);
+        }else{
+            for(int i = offset; i < offset + length; i++) values[i] = buffer.getLong();
+        }
+    }
+
+    public void readFloats(float[] values, int offset, int length){
+        if(length >= ByteBufferOutput.bulkThreshold){
+            buffer.asFloatBuffer().get(values, offset, length);
+            buffer.position(buffer.position() + length * 4);
+        }else{
+            for(int i = offset; i < offset + length; i++) values[i] = buffer.getFloat();
+        }
+    }
+
+    public void readDoubles(double[] values, int offset, int length){
+        if(length >= ByteBufferOutput.bulkThreshold){
+            buffer.asDoubleBuffer().get(values, offset, length);
+            buffer.position(buffer.position() + length * 8);
+        }else{
+            for(int i = offset; i < offset + length; i++) values[i] = buffer.getDouble();
+        }
+    }
+
+    /** Looks up a short string by its bytes, decoding and caching it if it isn't cached yet. */
+    private String readCached(int length){
+        if(cachedStrings == null){
+            cachedStrings = new String[cacheSize];
+            cachedBytes = new byte[cacheSize][];
+        }
+
+        int start = buffer.position();
+        int hash = length;
+        for(int i = 0; i < length; i++){
+            hash = hash * 31 + buffer.get(start + i);
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & (cacheSize - 1);
+        byte[] bytes = cachedBytes[slot];
+
+        if(bytes != null && bytes.length == length){
+            boolean equal = true;
+            for(int i = 0; i < length && equal; i++){
+                equal = bytes[i] == buffer.get(start + i);
+            }
+
+            if(equal){
+                buffer.position(start + length);
+                return cachedStrings[slot];
+            }
+        }
+
+        bytes = new byte[length];
         buffer.get(bytes);
-        return new String(bytes);
+        buffer.position(start);
+
+        cachedBytes[slot] = bytes;
+        return cachedStrings[slot] = decode(length);
+    }
+
+    /** Decodes UTF-8 bytes into a string. Malformed sequences are replaced by U+FFFD. */
+    private String decode(int length){
+        ensureChars(length);
+        int end = buffer.position() + length;
+        int count = 0;
+
+        while(buffer.position() < end){
+            int b = buffer.get() & 0xff;
+
+            if(b < 0x80){
+                chars[count++] = (char) b;
+                continue;
+            }
+
+            int extra, cp;
+            if(b >= 0xf0 && b < 0xf8){
+                extra = 3;
+                cp = b & 0x07;
+            }else if(b >= 0xe0){
+                extra = 2;
+                cp = b & 0x0f;
+            }else if(b >= 0xc0){
+                extra = 1;
+                cp = b & 0x1f;
+            }else{
+                chars[count++] = '\uFFFD';
+                continue;
+            }
+
+            if(buffer.position() + extra > end){
+                buffer.position(end);
+                chars[count++] = '\uFFFD';
+                break;
+            }
+
+            for(int i = 0; i < extra; i++){
+                cp = (cp << 6) | (buffer.get() & 0x3f);
+            }
+
+            if(cp > 0x10ffff){
+                chars[count++] = '\uFFFD';
+            }else if(cp >= 0x10000){
+                chars[count++] = (char) (0xd7c0 + (cp >>> 10));
+                chars[count++] = (char) (0xdc00 + (cp & 0x3ff));
+            }else{
+                chars[count++] = (char) cp;
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    private void ensureChars(int length){
+        if(chars.length < length){
+            char[] next = new char[Math.max(length, chars.length * 2)];
+            System.arraycopy(chars, 0, next, 0, chars.length);
+            chars = next;
+        }
     }
 }
@@ -3,8 +3,15 @@ package io.anuke.ucore.io;
 import java.io.DataOutput;
 import java.nio.ByteBuffer;
 
-/** DataOutput wrapper of ByteBuffer. */
+/**
+ * DataOutput wrapper of ByteBuffer.
+ * Besides the standard methods, this supports variable-length ints, bulk writes of primitive arrays,
+ * and writes strings as UTF-8 without allocating. Everything can be read back with {@link ByteBufferInput}.
+ */
 public class ByteBufferOutput implements DataOutput{
+    /** Arrays of at least this length are copied through a view buffer, which is faster than writing them one by one. */
+    static final int bulkThreshold = 16;
+
     private ByteBuffer buffer;
 
     /** Wraps the specified ByteBuffer. */
@@ -20,6 +27,10 @@ public class ByteBufferOutput implements DataOutput{
         this.buffer = buffer;
     }
 
+    public ByteBuffer getBuffer(){
+        return buffer;
+    }
+
     @Override
     public void write(int i){
         buffer.put((byte) i);
@@ -75,21 +86,147 @@ public class ByteBufferOutput implements DataOutput{
         buffer.putDouble(v);
     }
 
+    /** Writes the low byte of each char. */
     @Override
     public void writeBytes(String s){
-        throw new RuntimeException("Stub!");
+        for(int i = 0; i < s.length(); i++){
+            buffer.put((byte) s.charAt(i));
+        }
     }
 
     @Override
     public void writeChars(String s){
-        throw new RuntimeException("Stub!");
+        for(int i = 0; i < s.length(); i++){
+            buffer.putChar(s.charAt(i));
+        }
     }
 
+    /**
+     * Writes a string as a short length followed by its UTF-8 bytes.
+     * Note that this is not the modified UTF-8 format described by {@link DataOutput#writeUTF(String)}.
+     */
     @Override
     public void writeUTF(String s){
-        byte[] bytes = s.getBytes();
-        if(bytes.length >= Short.MAX_VALUE) throw new IllegalArgumentException("Input string is too long!");
-        buffer.putShort((short) bytes.length);
-        buffer.put(bytes);
+        int length = utfLength(s);
+        if(length >= Short.MAX_VALUE) throw new IllegalArgumentException("Input string is too long!");
+        buffer.putShort((short) length);
+
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+
+            if(c < 0x80){
+                buffer.put((byte) c);
+            }else if(c < 0x800){
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (cp & 0x3f)));
+            }else if(c >= 0xd800 && c <= 0xdfff){
+                //unpaired surrogates can't be encoded
+                buffer.put((byte) '?');
+            }else{
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /** Writes an unsigned int in 1-5 bytes, 7 bits at a time. Small values take less space. Negative values always take 5 bytes. */
+    public void writeVarInt(int value){
+        while((value & ~0x7f) != 0){
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /** Writes an int with zigzag encoding, so values close to zero take less space, whatever their sign. */
+    public void writeSignedVarInt(int value){
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /** Writes an unsigned long in 1-10 bytes, 7 bits at a time. */
+    public void writeVarLong(long value){
+        while((value & ~0x7fL) != 0){
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /** Writes a long with zigzag encoding, so values close to zero take less space, whatever their sign. */
+    public void writeSignedVarLong(long value){
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeShorts(short[] values, int offset, int length){
+        if(length >= bulkThreshold){
+            buffer.asShortBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 2);
+        }else{
+            for(int i = offset; i < offset + length; i++) buffer.putShort(values[i]);
+        }
+    }
+
+    public void writeInts(int[] values, int offset, int length){
+        if(length >= bulkThreshold){
+            buffer.asIntBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 4);
+        }else{
+            for(int i = offset; i < offset + length; i++) buffer.putInt(values[i]);
+        }
+    }
+
+    public void writeLongs(long[] values, int offset, int length){
+        if(length >= bulkThreshold){
+            buffer.asLongBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 8);
+        }else{
+            for(int i = offset; i < offset + length; i++) buffer.putLong(values[i]);
+        }
+    }
+
+    public void writeFloats(float[] values, int offset, int length){
+        if(length >= bulkThreshold){
+            buffer.asFloatBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 4);
+        }else{
+            for(int i = offset; i < offset + length; i++) buffer.putFloat(values[i]);
+        }
+    }
+
+    public void writeDoubles(double[] values, int offset, int length){
+        if(length >= bulkThreshold){
+            buffer.asDoubleBuffer().put(values, offset, length);
+            buffer.position(buffer.position() + length * 8);
+        }else{
+            for(int i = offset; i < offset + length; i++) buffer.putDouble(values[i]);
+        }
+    }
+
+    /** Returns the number of bytes a string takes in UTF-8, as written by {@link #writeUTF(String)}. */
+    static int utfLength(String s){
+        int length = 0;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < 0x80){
+                length += 1;
+            }else if(c < 0x800){
+                length += 2;
+            }else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                length += 4;
+                i++;
+            }else if(c >= 0xd800 && c <= 0xdfff){
+                length += 1;
+            }else{
+                length += 3;
+            }
+        }
+        return length;
     }
 }
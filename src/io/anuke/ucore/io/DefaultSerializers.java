@@ -1,36 +1,296 @@
 package io.anuke.ucore.io;
 
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Bits;
+import com.badlogic.gdx.utils.FloatArray;
 import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntIntMap;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.LongArray;
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.ObjectIntMap;
 import com.badlogic.gdx.utils.ObjectMap;
 import com.badlogic.gdx.utils.ObjectMap.Entry;
 import com.badlogic.gdx.utils.ObjectSet;
 import io.anuke.ucore.core.Settings;
+import io.anuke.ucore.util.GridBits;
+import io.anuke.ucore.util.GridMap;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 
 public class DefaultSerializers{
+    /** Maximum size of the buffers that primitive arrays are converted in, in bytes. */
+    private static final int chunkSize = 8192;
+
+    /**
+     * Writes a type for serializers of collections, and returns its serializer.
+     * With a {@link TypedDataOutput}, this writes an ID; otherwise, it writes the class name.
+     */
+    public static TypeSerializer writeType(DataOutput stream, Class<?> type) throws IOException{
+        TypeSerializer ser = Settings.getSerializer(type);
+        if(ser == null) throw new IllegalArgumentException(type + " does not have a serializer registered!");
+
+        if(stream instanceof TypedDataOutput){
+            ((TypedDataOutput) stream).writeType(type);
+        }else{
+            stream.writeUTF(Settings.classID(type));
+        }
+        return ser;
+    }
+
+    /** Reads a type written by {@link #writeType(DataOutput, Class)}, and returns its serializer. */
+    public static TypeSerializer readType(DataInput stream) throws IOException{
+        if(stream instanceof TypedDataInput){
+            return ((TypedDataInput) stream).readType();
+        }
+        return readTypeName(stream);
+    }
+
+    static TypeSerializer readTypeName(DataInput stream) throws IOException{
+        String type = stream.readUTF();
+        TypeSerializer ser = Settings.getSerializer(type);
+        if(ser == null) throw new IllegalArgumentException(type + " does not have a serializer registered!");
+        return ser;
+    }
 
     public static void register(){
         Settings.setSerializer(IntArray.class, new TypeSerializer<IntArray>(){
             @Override
             public void write(DataOutput stream, IntArray object) throws IOException{
                 stream.writeInt(object.size);
-                for(int i = 0; i < object.size; i++){
-                    stream.writeInt(object.get(i));
-                }
+                writeInts(stream, object.items, object.size);
             }
 
             @Override
             public IntArray read(DataInput stream) throws IOException{
                 int size = stream.readInt();
                 IntArray a = new IntArray(size);
+                a.size = size;
+                readInts(stream, a.items, size);
+                return a;
+            }
+        });
+
+        Settings.setSerializer(FloatArray.class, new TypeSerializer<FloatArray>(){
+            @Override
+            public void write(DataOutput stream, FloatArray object) throws IOException{
+                stream.writeInt(object.size);
+                writeFloats(stream, object.items, object.size);
+            }
+
+            @Override
+            public FloatArray read(DataInput stream) throws IOException{
+                int size = stream.readInt();
+                FloatArray a = new FloatArray(size);
+                a.size = size;
+                readFloats(stream, a.items, size);
+                return a;
+            }
+        });
+
+        Settings.setSerializer(LongArray.class, new TypeSerializer<LongArray>(){
+            @Override
+            public void write(DataOutput stream, LongArray object) throws IOException{
+                stream.writeInt(object.size);
+                writeLongs(stream, object.items, object.size);
+            }
+
+            @Override
+            public LongArray read(DataInput stream) throws IOException{
+                int size = stream.readInt();
+                LongArray a = new LongArray(size);
+                a.size = size;
+                readLongs(stream, a.items, size);
+                return a;
+            }
+        });
+
+        Settings.setSerializer(IntIntMap.class, new TypeSerializer<IntIntMap>(){
+            @Override
+            public void write(DataOutput stream, IntIntMap map) throws IOException{
+                int[] keys = new int[map.size], values = new int[map.size];
+                int i = 0;
+                for(IntIntMap.Entry entry : map.entries()){
+                    keys[i] = entry.key;
+                    values[i++] = entry.value;
+                }
+
+                stream.writeInt(map.size);
+                writeInts(stream, keys, map.size);
+                writeInts(stream, values, map.size);
+            }
+
+            @Override
+            public IntIntMap read(DataInput stream) throws IOException{
+                int size = stream.readInt();
+                int[] keys = new int[size], values = new int[size];
+                readInts(stream, keys, size);
+                readInts(stream, values, size);
+
+                IntIntMap map = new IntIntMap(Math.max(size, 1));
                 for(int i = 0; i < size; i++){
-                    a.add(stream.readInt());
+                    map.put(keys[i], values[i]);
                 }
-                return a;
+                return map;
+            }
+        });
+
+        Settings.setSerializer(IntMap.class, new TypeSerializer<IntMap>(){
+            @Override
+            public void write(DataOutput stream, IntMap map) throws IOException{
+                stream.writeInt(map.size);
+                if(map.size == 0) return;
+
+                int[] keys = new int[map.size];
+                Object[] values = new Object[map.size];
+                int i = 0;
+                for(Object e : map.entries()){
+                    IntMap.Entry entry = (IntMap.Entry) e;
+                    keys[i] = entry.key;
+                    values[i++] = entry.value;
+                }
+
+                TypeSerializer valser = writeType(stream, values[0].getClass());
+
+                writeInts(stream, keys, keys.length);
+                for(Object value : values){
+                    valser.write(stream, value);
+                }
+            }
+
+            @Override
+            public IntMap read(DataInput stream) throws IOException{
+                int size = stream.readInt();
+                IntMap map = new IntMap(Math.max(size, 1));
+                if(size == 0) return map;
+
+                TypeSerializer valser = readType(stream);
+                int[] keys = new int[size];
+                readInts(stream, keys, size);
+
+                for(int i = 0; i < size; i++){
+                    map.put(keys[i], valser.read(stream));
+                }
+                return map;
+            }
+        });
+
+        Settings.setSerializer(ObjectIntMap.class, new TypeSerializer<ObjectIntMap>(){
+            @Override
+            public void write(DataOutput stream, ObjectIntMap map) throws IOException{
+                stream.writeInt(map.size);
+                if(map.size == 0) return;
+
+                Object[] keys = new Object[map.size];
+                int[] values = new int[map.size];
+                int i = 0;
+                for(Object e : map.entries()){
+                    ObjectIntMap.Entry entry = (ObjectIntMap.Entry) e;
+                    keys[i] = entry.key;
+                    values[i++] = entry.value;
+                }
+
+                TypeSerializer keyser = writeType(stream, keys[0].getClass());
+                for(Object key : keys){
+                    keyser.write(stream, key);
+                }
+                writeInts(stream, values, values.length);
+            }
+
+            @Override
+            public ObjectIntMap read(DataInput stream) throws IOException{
+                int size = stream.readInt();
+                ObjectIntMap map = new ObjectIntMap(Math.max(size, 1));
+                if(size == 0) return map;
+
+                TypeSerializer keyser = readType(stream);
+                Object[] keys = new Object[size];
+                for(int i = 0; i < size; i++){
+                    keys[i] = keyser.read(stream);
+                }
+
+                int[] values = new int[size];
+                readInts(stream, values, size);
+                for(int i = 0; i < size; i++){
+                    map.put(keys[i], values[i]);
+                }
+                return map;
+            }
+        });
+
+        Settings.setSerializer(Bits.class, new TypeSerializer<Bits>(){
+            @Override
+            public void write(DataOutput stream, Bits bits) throws IOException{
+                writeBits(stream, bits);
+            }
+
+            @Override
+            public Bits read(DataInput stream) throws IOException{
+                Bits bits = new Bits();
+                readBits(stream, bits);
+                return bits;
+            }
+        });
+
+        Settings.setSerializer(GridBits.class, new TypeSerializer<GridBits>(){
+            @Override
+            public void write(DataOutput stream, GridBits grid) throws IOException{
+                stream.writeInt(grid.width());
+                stream.writeInt(grid.height());
+                writeBits(stream, grid.bits());
+            }
+
+            @Override
+            public GridBits read(DataInput stream) throws IOException{
+                int width = stream.readInt(), height = stream.readInt();
+                GridBits grid = new GridBits(width, height);
+                readBits(stream, grid.bits());
+                return grid;
+            }
+        });
+
+        Settings.setSerializer(GridMap.class, new TypeSerializer<GridMap>(){
+            @Override
+            public void write(DataOutput stream, GridMap map) throws IOException{
+                stream.writeInt(map.size());
+                if(map.size() == 0) return;
+
+                long[] keys = new long[map.size()];
+                Object[] values = new Object[map.size()];
+                int i = 0;
+                for(Object e : map.entries()){
+                    LongMap.Entry entry = (LongMap.Entry) e;
+                    keys[i] = entry.key;
+                    values[i++] = entry.value;
+                }
+
+                TypeSerializer valser = writeType(stream, values[0].getClass());
+                writeLongs(stream, keys, keys.length);
+                for(Object value : values){
+                    valser.write(stream, value);
+                }
+            }
+
+            @Override
+            public GridMap read(DataInput stream) throws IOException{
+                int size = stream.readInt();
+                GridMap map = new GridMap();
+                if(size == 0) return map;
+
+                TypeSerializer valser = readType(stream);
+                long[] keys = new long[size];
+                readLongs(stream, keys, size);
+
+                for(int i = 0; i < size; i++){
+                    map.put(io.anuke.ucore.util.Bits.getLeftInt(keys[i]), io.anuke.ucore.util.Bits.getRightInt(keys[i]), valser.read(stream));
+                }
+                return map;
             }
         });
 
@@ -51,10 +311,7 @@ public class DefaultSerializers{
             public void write(DataOutput stream, Array object) throws IOException{
                 stream.writeInt(object.size);
                 if(object.size != 0){
-                    TypeSerializer ser = Settings.getSerializer(object.get(0).getClass());
-                    if(ser == null) throw new IllegalArgumentException(object.get(0).getClass() + " does not have a serializer registered!");
-
-                    stream.writeUTF(Settings.classID(object.get(0).getClass()));
+                    TypeSerializer ser = writeType(stream, object.get(0).getClass());
 
                     for(Object element : object){
                         ser.write(stream, element);
@@ -69,11 +326,7 @@ public class DefaultSerializers{
 
                 if(size == 0) return arr;
 
-                String type = stream.readUTF();
-
-                TypeSerializer ser = Settings.getSerializer(type);
-                if(ser == null) throw new IllegalArgumentException(type + " does not have a serializer registered!");
-
+                TypeSerializer ser = readType(stream);
 
                 for(int i = 0; i < size; i++){
                     arr.add(ser.read(stream));
@@ -88,10 +341,7 @@ public class DefaultSerializers{
             public void write(DataOutput stream, ObjectSet object) throws IOException{
                 stream.writeInt(object.size);
                 if(object.size != 0){
-                    TypeSerializer ser = Settings.getSerializer(object.first().getClass());
-                    if(ser == null) throw new IllegalArgumentException(object.first().getClass() + " does not have a serializer registered!");
-
-                    stream.writeUTF(Settings.classID(object.first().getClass()));
+                    TypeSerializer ser = writeType(stream, object.first().getClass());
 
                     for(Object element : object){
                         ser.write(stream, element);
@@ -106,11 +356,7 @@ public class DefaultSerializers{
 
                 if(size == 0) return arr;
 
-                String type = stream.readUTF();
-
-                TypeSerializer ser = Settings.getSerializer(type);
-                if(ser == null) throw new IllegalArgumentException(type + " does not have a serializer registered!");
-
+                TypeSerializer ser = readType(stream);
                 for(int i = 0; i < size; i++){
                     arr.add(ser.read(stream));
                 }
@@ -126,13 +372,8 @@ public class DefaultSerializers{
                 if(map.size == 0) return;
                 Entry entry = map.entries().next();
 
-                TypeSerializer keyser = Settings.getSerializer(Settings.classID(entry.key.getClass()));
-                TypeSerializer valser = Settings.getSerializer(Settings.classID(entry.value.getClass()));
-                if(keyser == null) throw new IllegalArgumentException(entry.key.getClass() + " does not have a serializer registered!");
-                if(valser == null) throw new IllegalArgumentException(entry.value.getClass() + " does not have a serializer registered!");
-
-                stream.writeUTF(Settings.classID(entry.key.getClass()));
-                stream.writeUTF(Settings.classID(entry.value.getClass()));
+                TypeSerializer keyser = writeType(stream, entry.key.getClass());
+                TypeSerializer valser = writeType(stream, entry.value.getClass());
 
                 for(Object e : map.entries()){
                     Entry en = (Entry)e;
@@ -147,13 +388,8 @@ public class DefaultSerializers{
                 ObjectMap map = new ObjectMap();
                 if(size == 0) return map;
 
-                String keyt = stream.readUTF();
-                String valt = stream.readUTF();
-
-                TypeSerializer keyser = Settings.getSerializer(keyt);
-                TypeSerializer valser = Settings.getSerializer(valt);
-                if(keyser == null) throw new IllegalArgumentException(keyt + " does not have a serializer registered!");
-                if(valser == null) throw new IllegalArgumentException(valt + " does not have a serializer registered!");
+                TypeSerializer keyser = readType(stream);
+                TypeSerializer valser = readType(stream);
 
                 for(int i = 0; i < size; i++){
                     Object key = keyser.read(stream);
@@ -165,4 +401,138 @@ public class DefaultSerializers{
             }
         });
     }
+
+    /**
+     * Writes the words of a bit set as the amount of words followed by the words. Trailing empty words are not written.
+     * The word array of {@link Bits} is not accessible, so words are assembled from the set bits.
+     */
+    private static void writeBits(DataOutput stream, Bits bits) throws IOException{
+        long[] words = new long[(bits.length() + 63) >>> 6];
+        for(int i = bits.nextSetBit(0); i != -1; i = bits.nextSetBit(i + 1)){
+            words[i >>> 6] |= 1L << (i & 63);
+        }
+
+        stream.writeInt(words.length);
+        writeLongs(stream, words, words.length);
+    }
+
+    private static void readBits(DataInput stream, Bits bits) throws IOException{
+        int length = stream.readInt();
+        long[] words = new long[length];
+        readLongs(stream, words, length);
+
+        for(int i = 0; i < length; i++){
+            long word = words[i];
+            while(word != 0){
+                bits.set((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Writes the first values of an array, with the same result as calling {@link DataOutput#writeInt(int)} for each.
+     * With a {@link ByteBufferOutput}, the values are copied in one operation; otherwise, they are converted in chunks
+     * and written with one call per chunk.
+     */
+    public static void writeInts(DataOutput stream, int[] values, int length) throws IOException{
+        if(stream instanceof ByteBufferOutput){
+            ((ByteBufferOutput) stream).writeInts(values, 0, length);
+            return;
+        }
+
+        byte[] bytes = new byte[Math.min(length * 4, chunkSize)];
+        IntBuffer buffer = ByteBuffer.wrap(bytes).asIntBuffer();
+        for(int offset = 0; offset < length; offset += buffer.capacity()){
+            int amount = Math.min(buffer.capacity(), length - offset);
+            buffer.clear();
+            buffer.put(values, offset, amount);
+            stream.write(bytes, 0, amount * 4);
+        }
+    }
+
+    /** Reads values written by {@link #writeInts(DataOutput, int[], int)} into the start of an array. */
+    public static void readInts(DataInput stream, int[] values, int length) throws IOException{
+        if(stream instanceof ByteBufferInput){
+            ((ByteBufferInput) stream).readInts(values, 0, length);
+            return;
+        }
+
+        byte[] bytes = new byte[Math.min(length * 4, chunkSize)];
+        IntBuffer buffer = ByteBuffer.wrap(bytes).asIntBuffer();
+        for(int offset = 0; offset < length; offset += buffer.capacity()){
+            int amount = Math.min(buffer.capacity(), length - offset);
+            stream.readFully(bytes, 0, amount * 4);
+            buffer.clear();
+            buffer.get(values, offset, amount);
+        }
+    }
+
+    /** Writes the first values of an array; see {@link #writeInts(DataOutput, int[], int)}. */
+    public static void writeLongs(DataOutput stream, long[] values, int length) throws IOException{
+        if(stream instanceof ByteBufferOutput){
+            ((ByteBufferOutput) stream).writeLongs(values, 0, length);
+            return;
+        }
+
+        byte[] bytes = new byte[Math.min(length * 8, chunkSize)];
+        LongBuffer buffer = ByteBuffer.wrap(bytes).asLongBuffer();
+        for(int offset = 0; offset < length; offset += buffer.capacity()){
+            int amount = Math.min(buffer.capacity(), length - offset);
+            buffer.clear();
+            buffer.put(values, offset, amount);
+            stream.write(bytes, 0, amount * 8);
+        }
+    }
+
+    /** Reads values written by {@link #writeLongs(DataOutput, long[], int)} into the start of an array. */
+    public static void readLongs(DataInput stream, long[] values, int length) throws IOException{
+        if(stream instanceof ByteBufferInput){
+            ((ByteBufferInput) stream).readLongs(values, 0, length);
+            return;
+        }
+
+        byte[] bytes = new byte[Math.min(length * 8, chunkSize)];
+        LongBuffer buffer = ByteBuffer.wrap(bytes).asLongBuffer();
+        for(int offset = 0; offset < length; offset += buffer.capacity()){
+            int amount = Math.min(buffer.capacity(), length - offset);
+            stream.readFully(bytes, 0, amount * 8);
+            buffer.clear();
+            buffer.get(values, offset, amount);
+        }
+    }
+
+    /** Writes the first values of an array; see {@link #writeInts(DataOutput, int[], int)}. */
+    public static void writeFloats(DataOutput stream, float[] values, int length) throws IOException{
+        if(stream instanceof ByteBufferOutput){
+            ((ByteBufferOutput) stream).writeFloats(values, 0, length);
+            return;
+        }
+
+        byte[] bytes = new byte[Math.min(length * 4, chunkSize)];
+        FloatBuffer buffer = ByteBuffer.wrap(bytes).asFloatBuffer();
+        for(int offset = 0; offset < length; offset += buffer.capacity()){
+            int amount = Math.min(buffer.capacity(), length - offset);
+            buffer.clear();
+            buffer.put(values, offset, amount);
+            stream.write(bytes, 0, amount * 4);
+        }
+    }
+
+    /** Reads values written by {@link #writeFloats(DataOutput, float[], int)} into the start of an array. */
+    public static void readFloats(DataInput stream, float[] values, int length) throws IOException{
+        if(stream instanceof ByteBufferInput){
+            ((ByteBufferInput) stream).readFloats(values, 0, length);
+            return;
+        }
+
+        byte[] bytes = new byte[Math.min(length * 4, chunkSize)];
+        FloatBuffer buffer = ByteBuffer.wrap(bytes).asFloatBuffer();
+        for(int offset = 0; offset < length; offset += buffer.capacity()){
+            int amount = Math.min(buffer.capacity(), length - offset);
+            stream.readFully(bytes, 0, amount * 4);
+            buffer.clear();
+            buffer.get(values, offset, amount);
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package io.anuke.ucore.io;
+
+import io.anuke.ucore.core.Settings.Compressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blobs with zlib. Used through {@link io.anuke.ucore.core.Settings#setCompressor(Compressor)}.
+ * The same deflater and inflater are reset and reused for every blob.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class DeflateCompressor implements Compressor{
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+
+    /** Uses the default compression level. */
+    public DeflateCompressor(){
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** @param level A level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}. */
+    public DeflateCompressor(int level){
+        deflater = new Deflater(level);
+    }
+
+    @Override
+    public synchronized void compress(byte[] bytes, int offset, int length, byte[] dictionary, OutputStream out) throws IOException{
+        deflater.reset();
+        if(dictionary != null) deflater.setDictionary(dictionary);
+
+        DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater, 8192);
+        stream.write(bytes, offset, length);
+        stream.finish();
+    }
+
+    @Override
+    public synchronized void decompress(byte[] bytes, int offset, int length, byte[] dictionary, byte[] result) throws IOException{
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+
+        try{
+            int position = 0;
+            while(!inflater.finished()){
+                if(inflater.needsDictionary()){
+                    if(dictionary == null) throw new IOException("Blob was compressed with a dictionary, but none is set!");
+                    inflater.setDictionary(dictionary);
+                }
+
+                int read = inflater.inflate(result, position, result.length - position);
+                position += read;
+
+                if(read == 0 && (inflater.needsInput() || position == result.length) && !inflater.finished()){
+                    throw new IOException("Compressed blob is truncated or has the wrong size!");
+                }
+            }
+
+            if(position != result.length) throw new IOException("Compressed blob has the wrong size!");
+        }catch(DataFormatException | IllegalArgumentException e){
+            throw new IOException("Invalid compressed blob!", e);
+        }
+    }
+}
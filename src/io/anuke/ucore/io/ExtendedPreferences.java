@@ -2,18 +2,26 @@ package io.anuke.ucore.io;
 
 import com.badlogic.gdx.Preferences;
 import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils.OptimizedByteArrayOutputStream;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A binary variant of a preferences file.
  * Faster and uses less space/memory than the default desktop preferences class.
- * This class is thread-safe.
+ * This class is thread-safe. Getters don't lock, so reading never waits for threads that write or flush,
+ * and primitive values are stored without boxing.
+ * <p>
+ * The file is a log: {@link #flush()} only appends the values that changed since the last flush, and the file is
+ * compacted into a new one when most of it is made up of overwritten values. On load, the file is read in one go and
+ * only indexed; strings and byte arrays are decoded the first time they are read.
  */
 public class ExtendedPreferences implements Preferences{
     private final static byte TYPE_BOOL = 0;
@@ -22,24 +30,138 @@ public class ExtendedPreferences implements Preferences{
     private final static byte TYPE_FLOAT = 3;
     private final static byte TYPE_STRING = 4;
     private final static byte TYPE_BINARY = 5;
+    /** Marks a key as removed. Has no value. */
+    private final static byte TYPE_REMOVED = 6;
+
+    /** 'UPL', followed by the version. Files from older versions start with a value count instead. */
+    private final static int MAGIC = 0x55504c01;
+    private final static int headerSize = 4;
+    /** Logs smaller than this are never compacted. */
+    private final static int minCompactSize = 64 * 1024;
 
     private final FileHandle file;
-    private final Map<String, Object> values;
+    /** Held while writing the file, so that writes happen in the order they were prepared. */
+    private final Object writeLock = new Object();
+    /** Values are replaced instead of modified, so getters can read them without holding the lock. */
+    private final Map<String, Value> values = new ConcurrentHashMap<>();
+    /** Keys that were changed or removed since the last flush. */
+    private final HashSet<String> dirty = new HashSet<>();
+
+    /** Size of the log file, and the size of the records in it that are still in use. */
+    private long logSize, liveSize;
+    /** Whether the next flush has to rewrite the whole file, instead of appending to it. */
+    private boolean rewrite;
+
+    private final OptimizedByteArrayOutputStream byteStream = new OptimizedByteArrayOutputStream(256);
+    private final DataOutputStream dataOutput = new DataOutputStream(byteStream);
 
     /**
      * Reads a binary preference file. <br><br>
      * Format: <br>
-     * amount of values [int]<br>
-     * for each value: <br>
+     * magic number [int]<br>
+     * for each record: <br>
+     * - length of the rest of the record [int] <br>
      * - type of value [byte] <br>
      * - value name [UTF string] <br>
      * - value [size depends on type] <br>
+     * Later records override earlier ones with the same name.
+     * Files written by older versions, which contain a value count followed by the values without lengths, are read
+     * as well, and are converted on the next flush.
      */
     public ExtendedPreferences(FileHandle file){
         this.file = file;
-        this.values = new HashMap<>();
-        if(!file.exists()) return;
+        this.rewrite = true;
+        recover();
+        if(!file.exists() || file.length() < headerSize) return;
+
+        try{
+            //not memory-mapped, as a mapped file can't be replaced on Windows, which compaction needs to do
+            ByteBuffer buffer = ByteBuffer.wrap(file.readBytes());
+
+            if(buffer.getInt(0) == MAGIC){
+                index(buffer);
+            }else{
+                readLegacy();
+            }
+        }catch(IOException | GdxRuntimeException e){
+            rewrite = true;
+            new RuntimeException("Error reading preferences: " + file, e).printStackTrace();
+        }
+    }
+
+    /**
+     * Cleans up after a compaction that was interrupted. The file is only ever replaced by renaming, so it is either
+     * complete or missing; if it is missing, the old file is restored from the backup.
+     */
+    private void recover(){
+        FileHandle backup = backup(), temp = temp();
+
+        if(backup.exists()){
+            if(file.exists()){
+                backup.delete();
+            }else if(!backup.file().renameTo(file.file())){
+                new RuntimeException("Error restoring preferences from backup: " + backup).printStackTrace();
+            }
+        }
+
+        //the new contents may not have been written completely, and the old ones are still there
+        if(temp.exists()) temp.delete();
+    }
+
+    /**
+     * Indexes all records in a log. A truncated record at the end, as left by an interrupted write, is ignored.
+     * Primitives are decoded right away, as they take no more space than their location.
+     */
+    private void index(ByteBuffer buffer) throws IOException{
+        logSize = buffer.limit();
+        liveSize = headerSize;
+        rewrite = false;
+
+        int position = headerSize;
+        DataInputStream dataInput = new DataInputStream(new BufferStream(buffer));
+
+        while(position < logSize){
+            if(logSize - position < 4 || buffer.getInt(position) <= 0 || buffer.getInt(position) > logSize - position - 4){
+                //the rest of the file is garbage, so it has to be written again before anything can be appended
+                rewrite = true;
+                break;
+            }
+
+            int size = buffer.getInt(position) + 4;
+            buffer.position(position + 4);
+            byte type = buffer.get();
+            String key = dataInput.readUTF();
+
+            Value old = values.remove(key);
+            if(old != null) liveSize -= old.recordSize;
+
+            if(type != TYPE_REMOVED){
+                Value value;
+                switch(type){
+                    case TYPE_BOOL:
+                        value = new Value(type, buffer.get() != 0 ? 1 : 0, null);
+                        break;
+                    case TYPE_INT:
+                    case TYPE_FLOAT:
+                        value = new Value(type, buffer.getInt(), null);
+                        break;
+                    case TYPE_LONG:
+                        value = new Value(type, buffer.getLong(), null);
+                        break;
+                    default:
+                        value = new Value(type, buffer.array(), position, buffer.position());
+                        break;
+                }
+                value.recordSize = size;
+                values.put(key, value);
+                liveSize += size;
+            }
+
+            position += size;
+        }
+    }
 
+    private void readLegacy() throws IOException{
         try(DataInputStream stream = new DataInputStream(file.read())){
             int amount = stream.readInt();
             for(int i = 0; i < amount; i++){
@@ -48,71 +170,97 @@ public class ExtendedPreferences implements Preferences{
 
                 switch(type){
                     case TYPE_BOOL:
-                        values.put(key, stream.readBoolean());
+                        values.put(key, new Value(type, stream.readBoolean() ? 1 : 0, null));
                         break;
                     case TYPE_INT:
-                        values.put(key, stream.readInt());
+                    case TYPE_FLOAT:
+                        values.put(key, new Value(type, stream.readInt(), null));
                         break;
                     case TYPE_LONG:
-                        values.put(key, stream.readLong());
-                        break;
-                    case TYPE_FLOAT:
-                        values.put(key, stream.readFloat());
+                        values.put(key, new Value(type, stream.readLong(), null));
                         break;
                     case TYPE_STRING:
-                        values.put(key, stream.readUTF());
+                        values.put(key, new Value(type, 0, stream.readUTF()));
                         break;
                     case TYPE_BINARY:
                         int length = stream.readInt();
                         byte[] bytes = new byte[length];
-                        stream.read(bytes);
-                        values.put(key, bytes);
+                        stream.readFully(bytes);
+                        values.put(key, new Value(type, 0, bytes));
                         break;
                 }
             }
-        }catch(IOException e){
-            new RuntimeException("Error reading preferences: " + file, e).printStackTrace();
         }
     }
 
+    private synchronized void set(String key, byte type, long bits, Object object){
+        if(type >= TYPE_STRING && object == null){
+            remove(key);
+            return;
+        }
+
+        Value old = values.put(key, new Value(type, bits, object));
+        if(old != null) liveSize -= old.recordSize;
+        dirty.add(key);
+    }
+
+    /** Returns the value of a key, or null. Throws a ClassCastException if the value has a different type. */
+    private Value value(String key, byte type){
+        Value value = values.get(key);
+        if(value != null && value.type != type){
+            throw new ClassCastException("Preference '" + key + "' has type " + value.type + ", not " + type + "!");
+        }
+        return value;
+    }
+
     @Override
-    public synchronized Preferences putBoolean(String key, boolean val){
-        values.put(key, val);
+    public Preferences putBoolean(String key, boolean val){
+        set(key, TYPE_BOOL, val ? 1 : 0, null);
         return this;
     }
 
     @Override
-    public synchronized Preferences putInteger(String key, int val){
-        values.put(key, val);
+    public Preferences putInteger(String key, int val){
+        set(key, TYPE_INT, val, null);
         return this;
     }
 
     @Override
-    public synchronized Preferences putLong(String key, long val){
-        values.put(key, val);
+    public Preferences putLong(String key, long val){
+        set(key, TYPE_LONG, val, null);
         return this;
     }
 
     @Override
-    public synchronized Preferences putFloat(String key, float val){
-        values.put(key, val);
+    public Preferences putFloat(String key, float val){
+        set(key, TYPE_FLOAT, Float.floatToRawIntBits(val), null);
         return this;
     }
 
     @Override
-    public synchronized Preferences putString(String key, String val){
-        values.put(key, val);
+    public Preferences putString(String key, String val){
+        set(key, TYPE_STRING, 0, val);
         return this;
     }
 
-    public synchronized Preferences putBytes(String key, byte[] val){
-        values.put(key, val);
+    public Preferences putBytes(String key, byte[] val){
+        set(key, TYPE_BINARY, 0, val);
         return this;
     }
 
     @Override
     public synchronized Preferences put(Map<String, ?> vals){
-        values.putAll(vals);
+        for(Entry<String, ?> entry : vals.entrySet()){
+            String key = entry.getKey();
+            Object value = entry.getValue();
+
+            if(value instanceof Boolean) putBoolean(key, (Boolean) value);
+            else if(value instanceof Integer) putInteger(key, (Integer) value);
+            else if(value instanceof Long) putLong(key, (Long) value);
+            else if(value instanceof Float) putFloat(key, (Float) value);
+            else if(value instanceof String) putString(key, (String) value);
+            else if(value instanceof byte[]) putBytes(key, (byte[]) value);
+        }
         return this;
     }
 
@@ -145,106 +293,368 @@ public class ExtendedPreferences implements Preferences{
         return getString(key, "");
     }
 
-    public synchronized byte[] getBytes(String key, byte[] defValue){
-        if(values.containsKey(key)){
-            return (byte[]) values.get(key);
-        }
-        return defValue;
+    public byte[] getBytes(String key, byte[] defValue){
+        Value value = value(key, TYPE_BINARY);
+        return value == null ? defValue : (byte[]) value.object();
     }
 
     @Override
-    public synchronized boolean getBoolean(String key, boolean defValue){
-        if(values.containsKey(key)){
-            return (boolean) values.get(key);
-        }
-        return defValue;
+    public boolean getBoolean(String key, boolean defValue){
+        Value value = value(key, TYPE_BOOL);
+        return value == null ? defValue : value.bits != 0;
     }
 
     @Override
-    public synchronized int getInteger(String key, int defValue){
-        if(values.containsKey(key)){
-            return (int) values.get(key);
-        }
-        return defValue;
+    public int getInteger(String key, int defValue){
+        Value value = value(key, TYPE_INT);
+        return value == null ? defValue : (int) value.bits;
     }
 
     @Override
-    public synchronized long getLong(String key, long defValue){
-        if(values.containsKey(key)){
-            return (long) values.get(key);
-        }
-        return defValue;
+    public long getLong(String key, long defValue){
+        Value value = value(key, TYPE_LONG);
+        return value == null ? defValue : value.bits;
     }
 
     @Override
-    public synchronized float getFloat(String key, float defValue){
-        if(values.containsKey(key)){
-            return (float) values.get(key);
-        }
-        return defValue;
+    public float getFloat(String key, float defValue){
+        Value value = value(key, TYPE_FLOAT);
+        return value == null ? defValue : Float.intBitsToFloat((int) value.bits);
     }
 
     @Override
-    public synchronized String getString(String key, String defValue){
-        if(values.containsKey(key)){
-            return (String) values.get(key);
-        }
-        return defValue;
+    public String getString(String key, String defValue){
+        Value value = value(key, TYPE_STRING);
+        return value == null ? defValue : (String) value.object();
     }
 
+    /** Returns a copy of all values. This decodes every value that hasn't been read yet. */
     @Override
-    public synchronized Map<String, ?> get(){
-        return values;
+    public Map<String, ?> get(){
+        Map<String, Object> map = new HashMap<>();
+        for(Entry<String, Value> entry : values.entrySet()){
+            map.put(entry.getKey(), entry.getValue().boxed());
+        }
+        return map;
     }
 
     @Override
-    public synchronized boolean contains(String key){
+    public boolean contains(String key){
         return values.containsKey(key);
     }
 
     @Override
     public synchronized void clear(){
         values.clear();
+        dirty.clear();
+        rewrite = true;
     }
 
     @Override
     public synchronized void remove(String key){
-        values.remove(key);
-    }
-
-    @Override
-    public synchronized void flush(){
-        try(DataOutputStream stream = new DataOutputStream(file.write(false))){
-            stream.writeInt(values.size());
-
-            for(Entry<String, Object> entry : values.entrySet()){
-                stream.writeUTF(entry.getKey());
-
-                Object value = entry.getValue();
-
-                if(value instanceof Boolean){
-                    stream.writeByte(TYPE_BOOL);
-                    stream.writeBoolean((Boolean) value);
-                }else if(value instanceof Integer){
-                    stream.writeByte(TYPE_INT);
-                    stream.writeInt((Integer) value);
-                }else if(value instanceof Long){
-                    stream.writeByte(TYPE_LONG);
-                    stream.writeLong((Long) value);
-                }else if(value instanceof Float){
-                    stream.writeByte(TYPE_FLOAT);
-                    stream.writeFloat((Float) value);
-                }else if(value instanceof String){
-                    stream.writeByte(TYPE_STRING);
-                    stream.writeUTF((String) value);
-                }else if(value instanceof byte[]){
-                    stream.writeByte(TYPE_BINARY);
-                    stream.writeInt(((byte[]) value).length);
-                    stream.write((byte[]) value);
+        Value old = values.remove(key);
+        if(old != null) liveSize -= old.recordSize;
+        dirty.add(key);
+    }
+
+    /**
+     * Writes all changes to the file. Usually only appends the changed values; see the class description.
+     * <p>
+     * Changes are encoded while holding the lock, but the file is written without it, so this can be called on
+     * a background thread while other threads keep using the preferences.
+     */
+    @Override
+    public void flush(){
+        synchronized(writeLock){
+            Write write;
+
+            synchronized(this){
+                try{
+                    write = (rewrite || (logSize > minCompactSize && logSize - liveSize > liveSize)) ? prepareCompact() : prepareAppend();
+                }catch(IOException e){
+                    throw new RuntimeException("Error writing preferences: " + file, e);
                 }
             }
-        }catch(IOException e){
-            throw new RuntimeException("Error writing preferences: " + file, e);
+
+            if(write == null) return;
+
+            try{
+                write.write();
+            }catch(IOException | GdxRuntimeException e){
+                synchronized(this){
+                    //the file may now end with a partial record, so it can't be appended to
+                    rewrite = true;
+                }
+                //rethrown as a GdxRuntimeException, which Settings reports to its error handler
+                throw e instanceof GdxRuntimeException ? (GdxRuntimeException) e : new GdxRuntimeException("Error writing preferences: " + file, e);
+            }
+
+            synchronized(this){
+                write.finish();
+            }
+        }
+    }
+
+    /** Encodes a record for every changed key, to be appended to the log. Returns null if nothing changed. */
+    private Write prepareAppend() throws IOException{
+        if(dirty.isEmpty()) return null;
+
+        byteStream.reset();
+
+        for(String key : dirty){
+            Value value = values.get(key);
+            int start = byteStream.size();
+
+            writeRecord(key, value);
+            if(value != null){
+                value.recordSize = byteStream.size() - start;
+                liveSize += value.recordSize;
+            }
+        }
+
+        byte[] data = byteStream.toByteArray();
+        logSize += data.length;
+        dirty.clear();
+
+        return new Write(){
+            @Override
+            void write() throws IOException{
+                try(OutputStream stream = file.write(true)){
+                    stream.write(data);
+                }
+            }
+
+            @Override
+            void finish(){
+            }
+        };
+    }
+
+    /**
+     * Encodes every value into the contents of a new file, which then replaces the old one.
+     * Values that were read from the old log are copied from it as they are.
+     */
+    private Write prepareCompact() throws IOException{
+        OptimizedByteArrayOutputStream out = new OptimizedByteArrayOutputStream((int) Math.max(liveSize, 256));
+        String[] keys = new String[values.size()];
+        Value[] written = new Value[keys.length];
+        int[] offsets = new int[keys.length];
+        int count = 0;
+
+        new DataOutputStream(out).writeInt(MAGIC);
+
+        for(Entry<String, Value> entry : values.entrySet()){
+            Value value = entry.getValue();
+            keys[count] = entry.getKey();
+            written[count] = value;
+            offsets[count++] = out.size();
+
+            if(value.log != null){
+                out.write(value.log, value.recordOffset, value.recordSize);
+            }else{
+                byteStream.reset();
+                writeRecord(entry.getKey(), value);
+                byteStream.writeTo(out);
+                value.recordSize = byteStream.size();
+            }
+        }
+
+        byte[] data = out.toByteArray();
+        dirty.clear();
+        rewrite = false;
+
+        return new Write(){
+            @Override
+            void write() throws IOException{
+                FileHandle temp = temp(), backup = backup();
+                try(OutputStream stream = temp.write(false)){
+                    stream.write(data);
+                }
+
+                //each step is a rename, so the file is never incomplete; recover() restores the backup if it is missing
+                if(backup.exists() && !backup.delete()) throw new IOException("Could not delete " + backup);
+                if(file.exists()) rename(file, backup);
+                rename(temp, file);
+                backup.delete();
+            }
+
+            @Override
+            void finish(){
+                //values that still refer to the old log are moved to the new one, so the old one can be collected
+                for(int i = 0; i < written.length; i++){
+                    Value value = written[i];
+                    if(value.log != null && values.get(keys[i]) == value){
+                        values.put(keys[i], value.moveTo(data, offsets[i]));
+                    }
+                }
+
+                logSize = data.length;
+                liveSize = headerSize;
+                for(Value value : values.values()){
+                    liveSize += value.recordSize;
+                }
+            }
+        };
+    }
+
+    private FileHandle temp(){
+        return file.sibling(file.name() + ".tmp");
+    }
+
+    private FileHandle backup(){
+        return file.sibling(file.name() + ".bak");
+    }
+
+    /**
+     * Renames a file to a name that isn't used. Unlike {@link FileHandle#moveTo(FileHandle)}, this never falls back to copying,
+     * so it is atomic.
+     */
+    private static void rename(FileHandle from, FileHandle to) throws IOException{
+        if(!from.file().renameTo(to.file())){
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+
+    /** Writes a record with its length to the byte stream. A null value writes a removal. */
+    private void writeRecord(String key, Value value) throws IOException{
+        int start = byteStream.size();
+        byte type = value == null ? TYPE_REMOVED : value.type;
+        dataOutput.writeInt(0);
+        dataOutput.writeByte(type);
+        dataOutput.writeUTF(key);
+
+        switch(type){
+            case TYPE_BOOL:
+                dataOutput.writeBoolean(value.bits != 0);
+                break;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                dataOutput.writeInt((int) value.bits);
+                break;
+            case TYPE_LONG:
+                dataOutput.writeLong(value.bits);
+                break;
+            case TYPE_STRING:
+                dataOutput.writeUTF((String) value.object());
+                break;
+            case TYPE_BINARY:
+                byte[] bytes = (byte[]) value.object();
+                dataOutput.writeInt(bytes.length);
+                dataOutput.write(bytes);
+                break;
+        }
+
+        int length = byteStream.size() - start - 4;
+        byte[] bytes = byteStream.getBuffer();
+        bytes[start] = (byte) (length >>> 24);
+        bytes[start + 1] = (byte) (length >>> 16);
+        bytes[start + 2] = (byte) (length >>> 8);
+        bytes[start + 3] = (byte) length;
+    }
+
+    /**
+     * A value and where its record is in the log. Booleans, ints, longs and floats are stored as raw bits.
+     * Values are not modified once they are in the map, except for decoding the object and the record size,
+     * which is only used while holding the lock.
+     */
+    private static class Value{
+        final byte type;
+        final long bits;
+        /** Contents of the log the record was read from, or null if the value was set after loading. */
+        final byte[] log;
+        /** Offsets of the whole record and of the encoded value in the log. */
+        final int recordOffset, offset;
+        /** The string or byte array, or null if it hasn't been decoded yet. */
+        volatile Object object;
+        /** Size of the record in the file, or 0 if it hasn't been written yet. */
+        int recordSize;
+
+        Value(byte type, long bits, Object object){
+            this.type = type;
+            this.bits = bits;
+            this.object = object;
+            this.log = null;
+            this.recordOffset = 0;
+            this.offset = 0;
+        }
+
+        Value(byte type, byte[] log, int recordOffset, int offset){
+            this.type = type;
+            this.bits = 0;
+            this.log = log;
+            this.recordOffset = recordOffset;
+            this.offset = offset;
+        }
+
+        /** Returns a copy of this value with its record at another offset in a new log. */
+        Value moveTo(byte[] log, int recordOffset){
+            Value value = new Value(type, log, recordOffset, recordOffset + offset - this.recordOffset);
+            value.object = object;
+            value.recordSize = recordSize;
+            return value;
+        }
+
+        /** Returns the string or byte array, decoding it if needed. Threads that decode it at the same time get equal results. */
+        Object object(){
+            Object result = object;
+            if(result != null) return result;
+
+            try{
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(log, offset, log.length - offset));
+                if(type == TYPE_STRING){
+                    result = input.readUTF();
+                }else{
+                    byte[] bytes = new byte[input.readInt()];
+                    input.readFully(bytes);
+                    result = bytes;
+                }
+            }catch(IOException e){
+                throw new RuntimeException("Error reading preference value!", e);
+            }
+
+            object = result;
+            return result;
+        }
+
+        Object boxed(){
+            switch(type){
+                case TYPE_BOOL: return bits != 0;
+                case TYPE_INT: return (int) bits;
+                case TYPE_LONG: return bits;
+                case TYPE_FLOAT: return Float.intBitsToFloat((int) bits);
+                default: return object();
+            }
+        }
+    }
+
+    /** A file write that was prepared while holding the lock. */
+    private static abstract class Write{
+        /** Writes to the file. Called without holding the lock. */
+        abstract void write() throws IOException;
+
+        /** Updates the state after a successful write. Called while holding the lock. */
+        abstract void finish();
+    }
+
+    /** Reads from the current position of a buffer. */
+    private static class BufferStream extends InputStream{
+        final ByteBuffer buffer;
+
+        BufferStream(ByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(){
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length){
+            if(!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
         }
     }
 }
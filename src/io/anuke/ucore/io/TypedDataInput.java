@@ -0,0 +1,75 @@
+package io.anuke.ucore.io;
+
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.core.Settings;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads data written by {@link TypedDataOutput}. The header is read when the bytes are set, and the serializer of each
+ * type in it is looked up once, so reading a type afterwards is an array access.
+ * <p>
+ * Data without a header, as written before the header existed, is read as well: types are then read as class names.
+ */
+public class TypedDataInput extends DataInputStream{
+    private final ReusableByteArrayInputStream input;
+    private final Array<TypeSerializer> serializers = new Array<>();
+    private boolean typed;
+
+    public TypedDataInput(){
+        super(new ReusableByteArrayInputStream());
+        input = (ReusableByteArrayInputStream) in;
+    }
+
+    /**
+     * Sets the bytes to read, and reads their header if they have one.
+     * <p>
+     * Data written before the header existed may start with the same bytes as the header, such as a custom serializer's
+     * negative int or float. If the header doesn't validate, because its version is unknown, it runs past the end of
+     * the bytes, or one of its types has no serializer registered, the bytes are read as data without a header.
+     */
+    public void setBytes(byte[] bytes) throws IOException{
+        input.setBytes(bytes);
+        serializers.clear();
+        typed = bytes.length >= 4 && (((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8)) == TypedDataOutput.MAGIC;
+
+        if(typed && !readHeader()){
+            typed = false;
+            serializers.clear();
+            input.setBytes(bytes);
+        }
+    }
+
+    /** Reads the type table of the header. Returns false if it isn't valid. */
+    private boolean readHeader(){
+        try{
+            int version = readInt() & 0xff;
+            if(version < 1 || version > TypedDataOutput.VERSION) return false;
+
+            int amount = readUnsignedShort();
+            for(int i = 0; i < amount; i++){
+                TypeSerializer serializer = Settings.getSerializer(readUTF());
+                if(serializer == null) return false;
+                serializers.add(serializer);
+            }
+            return true;
+        }catch(IOException e){
+            return false;
+        }
+    }
+
+    /** Returns whether the bytes have a header, and types are written as IDs. */
+    public boolean isTyped(){
+        return typed;
+    }
+
+    /** Reads a type written by {@link TypedDataOutput#writeType(Class)}, and returns its serializer. */
+    public TypeSerializer readType() throws IOException{
+        if(!typed) return DefaultSerializers.readTypeName(this);
+
+        int id = readUnsignedShort();
+        if(id >= serializers.size) throw new IOException("Invalid type ID: " + id);
+        return serializers.get(id);
+    }
+}
@@ -0,0 +1,76 @@
+package io.anuke.ucore.io;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.StreamUtils.OptimizedByteArrayOutputStream;
+import io.anuke.ucore.core.Settings;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A data output that writes types as small IDs instead of class names.
+ * Serializers write types with {@link DefaultSerializers#writeType(java.io.DataOutput, Class)}, which uses this stream
+ * when it is given one. {@link #toByteArray()} then puts a header in front of the data, which maps each ID to its class name
+ * once. The result is read with {@link TypedDataInput}.
+ * <p>
+ * Format: <br>
+ * magic number and version [int] <br>
+ * amount of types [short] <br>
+ * for each type, in order of ID: class name, as returned by {@link Settings#classID(Class)} [UTF string] <br>
+ * data, with each type written as its ID [short]
+ */
+public class TypedDataOutput extends DataOutputStream{
+    /**
+     * The upper three bytes of the header; the lowest is the version.
+     * As it is negative, it can't be mistaken for a collection size, and as its third byte is zero, not for a UTF string either.
+     */
+    static final int MAGIC = 0xC1D50000;
+    static final int VERSION = 1;
+
+    private final OptimizedByteArrayOutputStream data;
+    private final OptimizedByteArrayOutputStream headerStream = new OptimizedByteArrayOutputStream(64);
+    private final DataOutputStream header = new DataOutputStream(headerStream);
+    private final Array<Class<?>> types = new Array<>();
+    private final ObjectIntMap<Class<?>> ids = new ObjectIntMap<>();
+
+    public TypedDataOutput(){
+        super(new OptimizedByteArrayOutputStream(64));
+        data = (OptimizedByteArrayOutputStream) out;
+    }
+
+    /** Clears the data and the types, so a new blob can be written. */
+    public void reset(){
+        data.reset();
+        written = 0;
+        types.clear();
+        ids.clear();
+    }
+
+    /** Writes the ID of a type, adding it to the header if it wasn't written yet. */
+    public void writeType(Class<?> type) throws IOException{
+        int id = ids.get(type, -1);
+        if(id == -1){
+            if(types.size >= 0xffff) throw new IOException("Too many types in one blob!");
+            id = types.size;
+            types.add(type);
+            ids.put(type, id);
+        }
+        writeShort(id);
+    }
+
+    /** Returns the header followed by everything that was written since the last reset. */
+    public byte[] toByteArray() throws IOException{
+        headerStream.reset();
+        header.writeInt(MAGIC | VERSION);
+        header.writeShort(types.size);
+        for(Class<?> type : types){
+            header.writeUTF(Settings.classID(type));
+        }
+
+        byte[] bytes = new byte[headerStream.size() + data.size()];
+        System.arraycopy(headerStream.getBuffer(), 0, bytes, 0, headerStream.size());
+        System.arraycopy(data.getBuffer(), 0, bytes, headerStream.size(), data.size());
+        return bytes;
+    }
+}
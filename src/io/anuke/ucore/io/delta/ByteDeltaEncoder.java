@@ -35,8 +35,24 @@ public interface ByteDeltaEncoder{
         byte[] target = matcher.getTarget();
 
         enc.init(source.length, target.length);
+        toDiff(matcher, enc, 0, target.length);
 
-        int targetEnd = 0;
+        return enc.toPatch();
+    }
+
+    /**
+     * Writes the instructions for a range of the target to an encoder, without initialising it.
+     * The matcher must only return matches within the range.
+     *
+     * @param matcher
+     * @param enc
+     * @param from start of the target range, inclusive
+     * @param to end of the target range, exclusive
+     */
+    static void toDiff(ByteMatcher matcher, ByteDeltaEncoder enc, int from, int to){
+        byte[] target = matcher.getTarget();
+
+        int targetEnd = from;
         int state;
 
         while((state = matcher.nextMatch()) != ByteMatcher.EOF){
@@ -53,10 +69,8 @@ public interface ByteDeltaEncoder{
 
             targetEnd = toff + slength;
         }
-        if(targetEnd != target.length)
-            enc.add(target, targetEnd, target.length - targetEnd);
-
-        return enc.toPatch();
+        if(targetEnd != to)
+            enc.add(target, targetEnd, to - targetEnd);
     }
 
     /**
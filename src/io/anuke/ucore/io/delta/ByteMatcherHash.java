@@ -38,16 +38,20 @@ public class ByteMatcherHash implements ByteMatcher{
     private final byte[] source;
     private final int sstep;
     private final byte[] target;
+    // Range of the target to match
+    private final int from;
+    private final int to;
+    // Shared source blocks
+    private final SourceIndex index;
     // Incremental hashes
     private final CyclicHash targetHash;
     private final CyclicHash sourceHash;
     /**
-     * Inline hash+array table.
+     * Inline hash+array table of the target blocks that have been passed.
      * <p>
      * All values which hash the same are appended to the same list.
-     * <p>
-     * Index is the current length/next insertion point for that hash chain.
-     * Values contains the chained hash table values.
+     * The first element of each list is its current length/next insertion point.
+     * These are stored with the source length added, as that is how copies address them.
      */
     final private int hashMask;
     final private int[][] hashValues;
@@ -83,13 +87,48 @@ public class ByteMatcherHash implements ByteMatcher{
      * @param target Target array.
      */
     public ByteMatcherHash(int b, int shortest, byte[] source, int sstep, byte[] target){
-        int size;
+        this(new SourceIndex(b, source, sstep), shortest, target, 0, target.length);
+    }
+
+    /** Creates a byte matcher with a shortest copy of 4, using an existing source index. */
+    public ByteMatcherHash(SourceIndex index, byte[] target){
+        this(index, 4, target);
+    }
 
-        b = Math.max(b, 3);
+    /**
+     * Creates a byte matcher using an existing source index, which is not modified.
+     * This only has to index the target, so it is much faster than building a new index when many targets are diffed
+     * against the same source.
+     * <p>
+     * Each matcher is single-use and must only be used by one thread, but any number of them may share an index.
+     *
+     * @param shortest shortest string considered for a copy.
+     */
+    public ByteMatcherHash(SourceIndex index, int shortest, byte[] target){
+        this(index, shortest, target, 0, target.length);
+    }
+
+    /**
+     * Creates a byte matcher for part of a target, using an existing source index.
+     * <p>
+     * Matches and runs stay within the range. Copies may refer to the whole source and to the target from the start of the range.
+     *
+     * @param from Start of the target range, inclusive.
+     * @param to End of the target range, exclusive.
+     */
+    ByteMatcherHash(SourceIndex index, int shortest, byte[] target, int from, int to){
+        this.index = index;
+        this.b = index.b;
+        this.shortest = shortest;
+        this.source = index.source;
+        this.sstep = index.sstep;
+        this.target = target;
+        this.from = from;
+        this.to = to;
 
         // This may need tuning.
-        int logN = 31 - Integer.numberOfLeadingZeros((source.length + target.length) / sstep);
-        size = 1 << Math.max(14, logN - 5);
+        int logN = 31 - Integer.numberOfLeadingZeros(Math.max((to - from) / sstep, 1));
+        int size = 1 << Math.max(14, logN - 5);
 
         hashMask = size - 1;
         hashValues = new int[size][];
@@ -97,49 +136,34 @@ public class ByteMatcherHash implements ByteMatcher{
         targetHash = new CyclicHash(b);
         sourceHash = new CyclicHash(b);
 
-        this.b = b;
-        this.shortest = shortest;
-        this.source = source;
-        this.sstep = sstep;
-        this.target = target;
-
-        addAll(source, source.length, 0, 0);
-        if(target.length >= b)
-            this.thash = targetHash.init(target, 0);
+        ti = skipTo = targetAvailable = from;
+        if(to - from >= b)
+            this.thash = targetHash.init(target, from);
     }
 
     /**
-     * Checks for run of 3 bytes.
-     * <p>
-     * Boundaries are not checked.
-     *
-     * @param s
-     * @param pos
-     * @return
+     * Adds the target blocks from pos up to limit to the target hash table.
      */
-    private boolean isRun(byte[] s, int pos){
-        byte v = s[pos];
-        return v == s[pos + 1] && v == s[pos + 2];
-    }
+    private int addAll(int limit, int pos){
+        int off = source.length;
 
-    private int addAll(byte[] s, int limit, int pos, int off){
         if(sstep == 1){
-            if(pos == 0 && limit >= b){
-                add(sourceHash.init(s, 0), off);
-                pos = 1;
+            if(pos == from && limit - from >= b){
+                add(sourceHash.init(target, from), from + off);
+                pos = from + 1;
             }
 
             while(pos <= limit - b){
-                int hash = sourceHash.update(s[pos - 1], s[pos - 1 + b]);
+                int hash = sourceHash.update(target[pos - 1], target[pos - 1 + b]);
 
-                if(!isRun(s, pos))
+                if(!SourceIndex.isRun(target, pos))
                     add(hash, pos + off);
                 pos += 1;
             }
         }else{
             while(pos <= limit - b){
-                if(!isRun(s, pos))
-                    add(sourceHash.init(s, pos), pos + off);
+                if(!SourceIndex.isRun(target, pos))
+                    add(sourceHash.init(target, pos), pos + off);
                 pos += sstep;
             }
         }
@@ -174,7 +198,7 @@ public class ByteMatcherHash implements ByteMatcher{
      */
     private int matchLength(int soff, int toff){
         if(soff < source.length){
-            int limit = Math.min(source.length - soff, target.length - toff);
+            int limit = Math.min(source.length - soff, to - toff);
 
             for(int i = 0; i < limit; i++)
                 if(source[soff + i] != target[toff + i])
@@ -182,7 +206,7 @@ public class ByteMatcherHash implements ByteMatcher{
             return limit;
         }else{
             soff -= source.length;
-            int limit = Math.min(target.length - soff, target.length - toff);
+            int limit = Math.min(to - soff, to - toff);
 
             for(int i = 0; i < limit; i++)
                 if(target[soff + i] != target[toff + i])
@@ -191,6 +215,19 @@ public class ByteMatcherHash implements ByteMatcher{
         }
     }
 
+    /** Checks every offset in part of a hash chain for a longer match. */
+    private void matchChain(int[] soffs, int start, int end){
+        for(int i = start; i < end; i++){
+            int soff = soffs[i];
+            int length = matchLength(soff, ti);
+
+            if(length > bestLength){
+                bestLength = length;
+                bestOffset = soff;
+            }
+        }
+    }
+
     @Override
     public byte[] getSource(){
         return source;
@@ -230,19 +267,19 @@ public class ByteMatcherHash implements ByteMatcher{
          * Reset thash on seek.
          */
         if(skipTo != ti){
-            if(skipTo <= target.length - b)
+            if(skipTo <= to - b)
                 thash = targetHash.init(target, skipTo);
             ti = skipTo;
         }
 
-        while(bestLength < shortest && ti <= target.length - b){
+        while(bestLength < shortest && ti <= to - b){
             /**
              * short circuit test for byte-runs.
              */
-            if(isRun(target, ti)){
+            if(SourceIndex.isRun(target, ti)){
                 byte b0 = target[ti];
                 int j = ti + 3;
-                while(j < target.length && target[j] == b0)
+                while(j < to && target[j] == b0)
                     j++;
                 targetOffset = ti;
                 bestLength = j - ti;
@@ -254,34 +291,24 @@ public class ByteMatcherHash implements ByteMatcher{
             /**
              * Include any of the target buffer which has been decoded to this point.
              */
-            targetAvailable = addAll(target, ti + b - 1, targetAvailable, source.length);
+            targetAvailable = addAll(ti + b - 1, targetAvailable);
 
             /**
-             * Checks the current string for the longest match.
+             * Checks the current string for the longest match, source first.
              */
-            int j = thash & hashMask;
-            int[] soffs = hashValues[j];
+            int j = thash & index.hashMask;
+            matchChain(index.offsets, index.buckets[j], index.buckets[j + 1]);
 
-            if(soffs != null){
-                int len = soffs[0];
-
-                for(int i = 1; i < len; i++){
-                    int soff = soffs[i];
-                    int length = matchLength(soff, ti);
-
-                    if(length > bestLength){
-                        bestLength = length;
-                        bestOffset = soff;
-                    }
-                }
-            }
+            int[] chain = hashValues[thash & hashMask];
+            if(chain != null)
+                matchChain(chain, 1, chain[0]);
 
             /**
              * Advance. thash is always the next block to examine.
              */
             targetOffset = ti;
             ti += 1;
-            if(ti <= target.length - b)
+            if(ti <= to - b)
                 thash = targetHash.update(target[ti - 1], target[ti - 1 + b]);
         }
 
@@ -16,6 +16,7 @@
  */
 package io.anuke.ucore.io.delta;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import static java.lang.Integer.rotateLeft;
@@ -71,6 +72,22 @@ public class CyclicHash{
         return hash;
     }
 
+    /**
+     * Initialises the hash from a buffer.
+     * <p>
+     * Same as {@link #init(byte[], int)}, using absolute positions. The buffer's position is not changed.
+     *
+     * @param data
+     * @param off
+     * @return
+     */
+    public int init(ByteBuffer data, int off){
+        hash = 0;
+        for(int i = 0; i < b; i++)
+            hash = rotateLeft(hash, 9) ^ random[data.get(i + off) & 0xff];
+        return hash;
+    }
+
     /**
      * Updates the hash incrementally.
      * <p>
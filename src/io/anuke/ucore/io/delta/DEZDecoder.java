@@ -17,54 +17,61 @@
 package io.anuke.ucore.io.delta;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * An in-memory DeltaZ-1 decoder.
  * <p>
  * Transforms a source and patch into a target.
  * <p>
+ * Sources and patches may be byte arrays or buffers, heap or direct. Decoding into a caller-supplied buffer with
+ * {@link #decode(ByteBuffer)} does not allocate anything.
+ * The patch is validated while decoding, so a corrupt patch throws an IOException instead of writing out of bounds.
  */
 public class DEZDecoder{
     /** Cached result byte array. This is so no extra memory is allocated every single decode. */
     private byte[] target;
+    /** Buffer wrapping the cached result array. */
+    private ByteBuffer targetBuffer;
     /** Lenght of decoded target array. */
     private int decodeLength;
 
-    private byte[] patch;
-    private byte[] source;
-    private int pi, si;
+    private ByteBuffer patch;
+    private ByteBuffer source;
+    private int pi, patchEnd;
+
+    /** Buffers wrapping the last arrays passed to {@link #init(byte[], byte[])}, reused while the arrays stay the same. */
+    private ByteBuffer sourceWrapper, patchWrapper;
+    /**
+     * Duplicates of the buffers, used for bulk copies without buffer arrays.
+     * Their positions and limits are set for each copy, so those of the buffers themselves are never touched.
+     */
+    private ByteBuffer sourceView, patchView, outView, outReadView;
+    /** The output buffer that {@link #outView} and {@link #outReadView} duplicate. */
+    private ByteBuffer viewedOut;
 
     /** Call this function before decoding anything. */
     public void init(byte[] src, byte[] patch){
-        this.patch = patch;
-        this.source = src;
-        pi = 0;
-        si = 0;
+        sourceWrapper = wrap(sourceWrapper, src);
+        patchWrapper = wrap(patchWrapper, patch);
+        init(sourceWrapper, patchWrapper);
     }
 
-    private int decodeInt(){
-        int v = 0;
-        byte b;
-        int limit = Math.min(patch.length, pi + 5);
-
-        do{
-            b = patch[pi++];
-            v = (v << 7) | (b & 0x7f);
-        }while(pi < limit && (b & 0x80) != 0);
-
-        return v;
+    /**
+     * Call this function before decoding anything.
+     * Only the data between the position and limit of each buffer is used. Their positions are not changed.
+     */
+    public void init(ByteBuffer src, ByteBuffer patch){
+        if(this.source != src) sourceView = null;
+        if(this.patch != patch) patchView = null;
+        this.patch = patch;
+        this.source = src;
     }
 
-    /** On entry pi points to the opcode, which is also in 'op'. */
-    private int decodeLength(int op){
-        int length = op & 0x1f;
-
-        pi++;
-        while((op & 0x80) != 0){
-            op = patch[pi++];
-            length = (length << 7) | (op & 0x7f);
-        }
-        return length;
+    /** Reads the target size from the patch header, for sizing the buffer passed to {@link #decode(ByteBuffer)}. */
+    public int getTargetSize() throws IOException{
+        return readHeader();
     }
 
     /**
@@ -73,75 +80,217 @@ public class DEZDecoder{
      * by calling {@link #getDecodedLength()}.
      */
     public byte[] decode() throws IOException{
-        int ti = 0;
+        int targetSize = readHeader();
+
+        //resize cached result byte array if it's too small
+        if(target == null || target.length < targetSize){
+            target = new byte[targetSize];
+            targetBuffer = ByteBuffer.wrap(target);
+        }
+
+        decodeInstructions(targetBuffer, 0, targetSize);
+        return target;
+    }
+
+    /**
+     * Recreates the original target data from the source and patch, and writes it to a buffer at its position.
+     * The position is advanced by the decoded length. Nothing is written if the buffer is too small.
+     *
+     * @return The decoded length.
+     */
+    public int decode(ByteBuffer out) throws IOException{
+        int targetSize = readHeader();
 
-        pi = 0;
-        si = 0;
+        if(out.remaining() < targetSize)
+            throw new IOException("Target of " + targetSize + " bytes does not fit in the output buffer");
+
+        decodeInstructions(out, out.position(), targetSize);
+        out.position(out.position() + targetSize);
+        return targetSize;
+    }
+
+    /** Returns decoded length of array. */
+    public int getDecodedLength(){
+        return decodeLength;
+    }
+
+    /** Checks the header, and returns the target size. On exit pi points to the first instruction. */
+    private int readHeader() throws IOException{
+        pi = patch.position();
+        patchEnd = patch.limit();
 
         // 'decode' magic
         for(int i = 0; i < DEZEncoder.MAGIC.length; i++)
-            if(patch[i] != DEZEncoder.MAGIC[i])
+            if(next() != DEZEncoder.MAGIC[i])
                 throw new IOException("Invalid magic");
 
-        pi += 4;
         // 'decode' flags
-        if(patch[pi] != 0)
+        if(next() != 0)
             throw new IOException("Unknown flags");
-        pi += 1;
 
         // get sizes
         int sourceSize = decodeInt();
         int targetSize = decodeInt();
 
-        if(sourceSize != source.length)
+        if(sourceSize != source.remaining())
             throw new IOException("Patch/source size mismatch");
 
-        //resize cached result byte array if it's too small
-        if(target == null || target.length < targetSize){
-            target = new byte[targetSize];
+        if(targetSize < 0)
+            throw new IOException("Invalid target size");
+
+        return targetSize;
+    }
+
+    /** Decodes all instructions into a buffer, starting at an absolute offset. */
+    private void decodeInstructions(ByteBuffer out, int base, int targetSize) throws IOException{
+        int sourceSize = source.remaining();
+        int ti = 0;
+
+        if(viewedOut != out){
+            viewedOut = out;
+            outView = outReadView = null;
         }
 
         decodeLength = targetSize;
 
-        //Decode loop.
-        //Since java will check the array accesses anyway, don't clutter the code with our own.
         while(ti < targetSize){
-            byte op = patch[pi];
-            byte r;
+            if(pi >= patchEnd)
+                throw new IOException("Unexpected end of patch");
+
+            byte op = patch.get(pi);
+            int length;
 
             if((op & 0x40) == 0){
                 // COPY
-                int length = decodeInt();
+                length = decodeInt();
                 int addr = decodeInt();
+                checkLength(ti, length, targetSize);
 
-                if(addr < sourceSize)
-                    for(int i = 0; i < length; i++)
-                        target[ti++] = source[addr + i];
-                else
-                    for(int i = 0; i < length; i++)
-                        target[ti++] = target[addr - sourceSize + i];
+                if(addr < 0){
+                    throw new IOException("Invalid copy address");
+                }else if(addr < sourceSize){
+                    if(length > sourceSize - addr)
+                        throw new IOException("Copy out of source bounds");
+                    copy(source, source.position() + addr, out, base + ti, length);
+                }else{
+                    int offset = addr - sourceSize;
+                    if(offset >= ti)
+                        throw new IOException("Copy refers to target data that isn't decoded yet");
+
+                    if(offset + length <= ti){
+                        copy(out, base + offset, out, base + ti, length);
+                    }else{
+                        //overlapping copies repeat the data they produce, so they go byte by byte
+                        for(int i = 0; i < length; i++)
+                            out.put(base + ti + i, out.get(base + offset + i));
+                    }
+                }
             }else if((op & 0x20) == 0){
                 // ADD
-                int length = decodeLength(op);
+                length = decodeLength(op) + 1;
+                checkLength(ti, length, targetSize);
+                if(length > patchEnd - pi)
+                    throw new IOException("Unexpected end of patch");
 
-                for(int i = 0; i <= length; i++)
-                    target[ti++] = patch[pi++];
+                copy(patch, pi, out, base + ti, length);
+                pi += length;
             }else{
                 // RUN
-                int length = decodeLength(op);
+                length = decodeLength(op) + 1;
+                checkLength(ti, length, targetSize);
+                byte r = next();
 
-                r = patch[pi++];
-                for(int i = 0; i <= length; i++)
-                    target[ti++] = r;
+                if(out.hasArray()){
+                    int start = out.arrayOffset() + base + ti;
+                    Arrays.fill(out.array(), start, start + length, r);
+                }else{
+                    for(int i = 0; i < length; i++)
+                        out.put(base + ti + i, r);
+                }
             }
+
+            ti += length;
         }
+    }
 
-        return target;
+    /**
+     * Copies between absolute offsets of two buffers, which are the source, the patch or the output.
+     * Buffers without a backing array are copied through their views, as the source and patch may be shared between
+     * decoders, so their positions are never touched.
+     */
+    private void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset, int length){
+        if(from.hasArray() && to.hasArray()){
+            System.arraycopy(from.array(), from.arrayOffset() + fromOffset, to.array(), to.arrayOffset() + toOffset, length);
+        }else{
+            ByteBuffer target = select(outView == null ? (outView = to.duplicate()) : outView, toOffset, length);
+            if(from.hasArray()){
+                target.put(from.array(), from.arrayOffset() + fromOffset, length);
+            }else{
+                target.put(select(readView(from), fromOffset, length));
+            }
+        }
     }
 
-    /** Returns decoded length of array. */
-    public int getDecodedLength(){
-        return decodeLength;
+    /** Returns the view used to read from a buffer, creating it if needed. */
+    private ByteBuffer readView(ByteBuffer from){
+        if(from == source){
+            return sourceView == null ? (sourceView = source.duplicate()) : sourceView;
+        }else if(from == patch){
+            return patchView == null ? (patchView = patch.duplicate()) : patchView;
+        }else{
+            return outReadView == null ? (outReadView = from.duplicate()) : outReadView;
+        }
+    }
+
+    /** Sets the position and limit of a view to a range. */
+    private static ByteBuffer select(ByteBuffer view, int offset, int length){
+        view.clear();
+        view.position(offset);
+        view.limit(offset + length);
+        return view;
+    }
+
+    /** Returns a buffer wrapping the whole array, reusing the previous wrapper if it wraps the same array. */
+    private static ByteBuffer wrap(ByteBuffer wrapper, byte[] array){
+        if(wrapper == null || wrapper.array() != array) return ByteBuffer.wrap(array);
+        wrapper.clear();
+        return wrapper;
+    }
+
+    private static void checkLength(int ti, int length, int targetSize) throws IOException{
+        if(length <= 0 || length > targetSize - ti)
+            throw new IOException("Patch overruns target size");
+    }
+
+    private byte next() throws IOException{
+        if(pi >= patchEnd)
+            throw new IOException("Unexpected end of patch");
+        return patch.get(pi++);
+    }
+
+    private int decodeInt() throws IOException{
+        int v = 0;
+        byte b;
+        int i = 0;
+
+        do{
+            b = next();
+            v = (v << 7) | (b & 0x7f);
+        }while(++i < 5 && (b & 0x80) != 0);
+
+        return v;
+    }
+
+    /** On entry pi points to the opcode, which is also in 'op'. */
+    private int decodeLength(int op) throws IOException{
+        int length = op & 0x1f;
+
+        pi++;
+        while((op & 0x80) != 0){
+            op = next();
+            length = (length << 7) | (op & 0x7f);
+        }
+        return length;
     }
 
 }
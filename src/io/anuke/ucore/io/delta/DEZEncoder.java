@@ -18,6 +18,7 @@ package io.anuke.ucore.io.delta;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * 'DeltaZ-1' format encoder.
@@ -92,6 +93,11 @@ public class DEZEncoder implements ByteDeltaEncoder{
         }
     }
 
+    /** Clears the patch without writing a header, for encoding instructions that are appended to another patch. */
+    public void reset(){
+        patch.reset();
+    }
+
     /**
      * Encode an opcode + length.
      *
@@ -155,4 +161,14 @@ public class DEZEncoder implements ByteDeltaEncoder{
     public byte[] toPatch(){
         return patch.toByteArray();
     }
+
+    /** Writes the patch to a stream, without copying it. */
+    public void writeTo(OutputStream out) throws IOException{
+        patch.writeTo(out);
+    }
+
+    /** Returns the current size of the patch. */
+    public int size(){
+        return patch.size();
+    }
 }
@@ -0,0 +1,223 @@
+package io.anuke.ucore.io.delta;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A streaming 'DeltaZ-1' decoder, for sources and targets that are too large to decode in memory.
+ * <p>
+ * The source is read from a buffer, usually a memory-mapped file, and the patch and target are streamed.
+ * Decoded data goes through a fixed-size ring buffer, which also serves copies that refer to earlier target data.
+ * Patches from {@link DEZStreamEncoder} never contain those; patches from {@link DEZEncoder} may, and can only be decoded
+ * if every such copy is within the ring buffer.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class DEZStreamDecoder{
+    private final byte[] history;
+    private final int historySize;
+
+    private ByteBuffer source;
+    private InputStream patch;
+    private OutputStream out;
+    /** Number of target bytes decoded and written to the output so far. */
+    private int written, flushed;
+
+    /** Creates a decoder with a 1 MB history. */
+    public DEZStreamDecoder(){
+        this(1 << 20);
+    }
+
+    /** @param historySize How many bytes of decoded target data are kept for copies that refer to it. */
+    public DEZStreamDecoder(int historySize){
+        this.historySize = historySize;
+        this.history = new byte[historySize];
+    }
+
+    /** Applies a patch to the source file and writes the result to the target file. The source is memory-mapped. */
+    public void decode(File source, File patch, File target) throws IOException{
+        try(InputStream in = new BufferedInputStream(new FileInputStream(patch)); OutputStream out = new FileOutputStream(target)){
+            decode(DEZStreamEncoder.map(source), in, out);
+        }
+    }
+
+    public void decode(ByteBuffer source, ReadableByteChannel patch, WritableByteChannel target) throws IOException{
+        decode(source, new BufferedInputStream(Channels.newInputStream(patch)), Channels.newOutputStream(target));
+    }
+
+    /**
+     * Applies a patch to the source and writes the result to the target.
+     * The source is the data between its position and limit; its position is not changed.
+     *
+     * @param patch The patch. Should be buffered, as it is read byte by byte. It is not closed.
+     * @param target Output of the decoded data. It is flushed, but not closed.
+     */
+    public void decode(ByteBuffer source, InputStream patch, OutputStream target) throws IOException{
+        this.source = source.duplicate();
+        this.patch = patch;
+        this.out = target;
+        this.written = flushed = 0;
+
+        int base = source.position();
+
+        try{
+            for(int i = 0; i < DEZEncoder.MAGIC.length; i++)
+                if(read() != DEZEncoder.MAGIC[i])
+                    throw new IOException("Invalid magic");
+
+            if(read() != 0)
+                throw new IOException("Unknown flags");
+
+            int sourceSize = decodeInt(read());
+            int targetSize = decodeInt(read());
+
+            if(sourceSize != source.remaining())
+                throw new IOException("Patch/source size mismatch");
+
+            if(targetSize < 0)
+                throw new IOException("Invalid target size");
+
+            while(written < targetSize){
+                int op = read();
+
+                if((op & 0x40) == 0){
+                    // COPY
+                    int length = decodeInt(op);
+                    int addr = decodeInt(read());
+                    checkLength(length, targetSize);
+
+                    if(addr < 0){
+                        throw new IOException("Invalid copy address");
+                    }else if(addr < sourceSize){
+                        if(length > sourceSize - addr) throw new IOException("Copy out of source bounds");
+                        copySource(base + addr, length);
+                    }else{
+                        copyHistory(addr - sourceSize, length);
+                    }
+                }else if((op & 0x20) == 0){
+                    // ADD
+                    int length = decodeLength(op) + 1;
+                    checkLength(length, targetSize);
+                    add(length);
+                }else{
+                    // RUN
+                    int length = decodeLength(op) + 1;
+                    checkLength(length, targetSize);
+                    run((byte) read(), length);
+                }
+            }
+
+            flush();
+            out.flush();
+        }finally{
+            this.source = null;
+            this.patch = null;
+            this.out = null;
+        }
+    }
+
+    private void copySource(int addr, int length) throws IOException{
+        while(length > 0){
+            int at = written % historySize;
+            int n = reserve(at, length);
+            source.position(addr);
+            source.get(history, at, n);
+            written += n;
+            addr += n;
+            length -= n;
+        }
+    }
+
+    /** Copies earlier target data byte by byte, as the copy may overlap the data it produces. */
+    private void copyHistory(int offset, int length) throws IOException{
+        if(offset >= written || offset < written - historySize)
+            throw new IOException("Copy refers to target data outside of the history window");
+
+        for(int i = 0; i < length; i++){
+            byte v = history[(offset + i) % historySize];
+            int at = written % historySize;
+            reserve(at, 1);
+            history[at] = v;
+            written++;
+        }
+    }
+
+    private void add(int length) throws IOException{
+        while(length > 0){
+            int at = written % historySize;
+            int n = reserve(at, length);
+            readFully(history, at, n);
+            written += n;
+            length -= n;
+        }
+    }
+
+    private void run(byte value, int length) throws IOException{
+        while(length > 0){
+            int at = written % historySize;
+            int n = reserve(at, length);
+            Arrays.fill(history, at, at + n, value);
+            written += n;
+            length -= n;
+        }
+    }
+
+    /** Makes room in the ring buffer, and returns how many bytes can be written contiguously at a position. */
+    private int reserve(int at, int length) throws IOException{
+        if(written - flushed == historySize) flush();
+        return Math.min(length, Math.min(historySize - at, historySize - (written - flushed)));
+    }
+
+    /** Writes all decoded bytes that haven't been written yet. */
+    private void flush() throws IOException{
+        int start = flushed % historySize, count = written - flushed;
+        int first = Math.min(count, historySize - start);
+        out.write(history, start, first);
+        if(count > first) out.write(history, 0, count - first);
+        flushed = written;
+    }
+
+    /** Checks an instruction's length before anything is written, so a corrupt patch never writes past the target size. */
+    private void checkLength(int length, int targetSize) throws IOException{
+        if(length <= 0 || length > targetSize - written)
+            throw new IOException("Patch overruns target size");
+    }
+
+    private int decodeInt(int first) throws IOException{
+        int v = first & 0x7f;
+        int b = first;
+        for(int i = 1; i < 5 && (b & 0x80) != 0; i++){
+            b = read();
+            v = (v << 7) | (b & 0x7f);
+        }
+        return v;
+    }
+
+    private int decodeLength(int op) throws IOException{
+        int length = op & 0x1f;
+        while((op & 0x80) != 0){
+            op = read();
+            length = (length << 7) | (op & 0x7f);
+        }
+        return length;
+    }
+
+    private int read() throws IOException{
+        int b = patch.read();
+        if(b < 0) throw new EOFException("Unexpected end of patch");
+        return b;
+    }
+
+    private void readFully(byte[] data, int off, int len) throws IOException{
+        while(len > 0){
+            int read = patch.read(data, off, len);
+            if(read < 0) throw new EOFException("Unexpected end of patch");
+            off += read;
+            len -= read;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package io.anuke.ucore.io.delta;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A streaming 'DeltaZ-1' encoder, for sources and targets that are too large to diff in memory.
+ * <p>
+ * The source is read from a buffer, usually a memory-mapped file, and indexed by hashing one block every few bytes.
+ * The number of indexed blocks is capped, so larger sources are sampled more sparsely.
+ * The target is read from a stream through a fixed-size window, and instructions are written to the output as soon as they are found.
+ * Memory use only depends on the window size and the index cap, not on the size of the data.
+ * <p>
+ * Copies only refer to the source and never to earlier target data, so patches can be applied with bounded memory
+ * by {@link DEZStreamDecoder}. Patches are also readable by {@link DEZDecoder}.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class DEZStreamEncoder{
+    /** Maximum number of source candidates checked for each target position. */
+    private static final int maxChain = 16;
+
+    private final int b;
+    private final int windowSize;
+    private final int maxIndexSize;
+    private final CyclicHash hash;
+
+    //source index: chains of sampled block numbers, by hash
+    private int[] heads = new int[0];
+    private int[] next = new int[0];
+    private int hashMask;
+    private int step;
+    private ByteBuffer source;
+    private int sourceBase, sourceSize;
+
+    //target window
+    private final byte[] window;
+    private InputStream input;
+    private int filled, remaining;
+
+    //copy that may still be extended before it is written
+    private int copyAddr, copyLen;
+
+    //output
+    private OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private final byte[] work = new byte[6];
+    private int bufferSize;
+
+    /** Creates an encoder with a block size of 16, a 1 MB window and at most 4M indexed source blocks (about 50 MB of index). */
+    public DEZStreamEncoder(){
+        this(16, 1 << 20, 1 << 22);
+    }
+
+    /**
+     * @param blockSize Number of bytes hashed per source block (&gt;= 3). This is also the shortest copy that is looked for.
+     * @param windowSize Size of the target read window in bytes.
+     * @param maxIndexSize Maximum number of source blocks in the index. Each one takes up to 12 bytes.
+     */
+    public DEZStreamEncoder(int blockSize, int windowSize, int maxIndexSize){
+        if(blockSize < 3) throw new IllegalArgumentException("Block size must be at least 3!");
+        if(windowSize < blockSize * 4) throw new IllegalArgumentException("Window size must be at least 4 blocks!");
+
+        this.b = blockSize;
+        this.windowSize = windowSize;
+        this.maxIndexSize = maxIndexSize;
+        this.hash = new CyclicHash(blockSize);
+        this.window = new byte[windowSize];
+    }
+
+    /** Maps a whole file into memory for reading, for use as a source. */
+    public static ByteBuffer map(File file) throws IOException{
+        try(FileChannel channel = new RandomAccessFile(file, "r").getChannel()){
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** Writes a patch that turns the source file into the target file. The source is memory-mapped. */
+    public void encode(File source, File target, File patch) throws IOException{
+        long length = target.length();
+        if(length > Integer.MAX_VALUE) throw new IOException("Target is too large!");
+
+        try(InputStream in = new FileInputStream(target); OutputStream out = new FileOutputStream(patch)){
+            encode(map(source), in, (int) length, out);
+        }
+    }
+
+    public void encode(ByteBuffer source, ReadableByteChannel target, int targetSize, WritableByteChannel patch) throws IOException{
+        encode(source, Channels.newInputStream(target), targetSize, Channels.newOutputStream(patch));
+    }
+
+    /**
+     * Writes a patch that turns the source into the target.
+     * The source is the data between its position and limit; its position is not changed.
+     *
+     * @param target Stream of exactly targetSize bytes. It is not closed.
+     * @param patch Output of the patch. It is flushed, but not closed.
+     */
+    public void encode(ByteBuffer source, InputStream target, int targetSize, OutputStream patch) throws IOException{
+        this.source = source;
+        this.sourceBase = source.position();
+        this.sourceSize = source.remaining();
+        this.input = target;
+        this.remaining = targetSize;
+        this.out = patch;
+        this.filled = 0;
+        this.copyLen = 0;
+        this.bufferSize = 0;
+
+        try{
+            buildIndex();
+
+            write(DEZEncoder.MAGIC, 0, DEZEncoder.MAGIC.length);
+            write(0);
+            encodeInt(sourceSize);
+            encodeInt(targetSize);
+
+            fill();
+            scan();
+
+            flushCopy();
+            flushBuffer();
+            out.flush();
+        }finally{
+            this.source = null;
+            this.input = null;
+            this.out = null;
+        }
+    }
+
+    private void buildIndex(){
+        int blocks = sourceSize < b ? 0 : sourceSize - b + 1;
+        step = Math.max(b, (int) (((long) blocks + maxIndexSize - 1) / maxIndexSize));
+        int count = blocks == 0 ? 0 : (blocks - 1) / step + 1;
+        int size = Integer.highestOneBit(Math.max(count, 512) * 2 - 1);
+
+        if(heads.length != size) heads = new int[size];
+        if(next.length < count) next = new int[count];
+        hashMask = size - 1;
+        Arrays.fill(heads, -1);
+
+        for(int k = 0; k < count; k++){
+            int pos = sourceBase + k * step;
+            //runs are encoded as RUN instructions instead, and would only make chains longer
+            byte v = source.get(pos);
+            if(v == source.get(pos + 1) && v == source.get(pos + 2)) continue;
+
+            int h = hash.init(source, pos) & hashMask;
+            next[k] = heads[h];
+            heads[h] = k;
+        }
+    }
+
+    private void scan() throws IOException{
+        int pos = 0, addStart = 0;
+        boolean hashed = false;
+        int thash = 0;
+
+        while(true){
+            //keep at least half a window of lookahead; pending literal bytes are written first
+            if(remaining > 0 && filled - pos < windowSize / 2){
+                add(addStart, pos);
+                System.arraycopy(window, pos, window, 0, filled - pos);
+                filled -= pos;
+                pos = addStart = 0;
+                fill();
+            }
+
+            if(filled - pos < b) break;
+
+            //continue the last copy, if it was cut off by the end of the window or simply goes on
+            if(copyLen > 0 && addStart == pos){
+                int len = matchLength(copyAddr + copyLen, pos);
+                if(len > 0){
+                    copyLen += len;
+                    pos += len;
+                    addStart = pos;
+                    hashed = false;
+                    continue;
+                }
+            }
+
+            byte v = window[pos];
+            if(window[pos + 1] == v && window[pos + 2] == v){
+                int j = pos + 3;
+                while(j < filled && window[j] == v) j++;
+
+                add(addStart, pos);
+                run(v, j - pos);
+                pos = addStart = j;
+                hashed = false;
+                continue;
+            }
+
+            if(!hashed){
+                thash = hash.init(window, pos);
+                hashed = true;
+            }
+
+            int best = 0, bestAddr = 0, bestBack = 0, chain = 0;
+            for(int k = heads[thash & hashMask]; k != -1 && chain < maxChain; k = next[k], chain++){
+                int sp = k * step;
+                int len = matchLength(sp, pos);
+                if(len < b) continue;
+
+                //blocks are sampled, so the match may start before the block
+                int back = 0;
+                while(pos - back > addStart && sp - back > 0 && source.get(sourceBase + sp - back - 1) == window[pos - back - 1]){
+                    back++;
+                }
+
+                if(len + back > best){
+                    best = len + back;
+                    bestAddr = sp - back;
+                    bestBack = back;
+                }
+            }
+
+            if(best >= b){
+                add(addStart, pos - bestBack);
+                copy(bestAddr, best);
+                pos = addStart = pos - bestBack + best;
+                hashed = false;
+            }else{
+                if(pos + b < filled){
+                    thash = hash.update(window[pos], window[pos + b]);
+                }else{
+                    hashed = false;
+                }
+                pos++;
+            }
+        }
+
+        add(addStart, filled);
+    }
+
+    /** Returns how many bytes of the source at an offset match the window at a position. */
+    private int matchLength(int soff, int pos){
+        int limit = Math.min(sourceSize - soff, filled - pos);
+        for(int i = 0; i < limit; i++){
+            if(source.get(sourceBase + soff + i) != window[pos + i]) return i;
+        }
+        return Math.max(limit, 0);
+    }
+
+    /** Reads target data until the window is full or the target has ended. */
+    private void fill() throws IOException{
+        while(remaining > 0 && filled < windowSize){
+            int read = input.read(window, filled, Math.min(windowSize - filled, remaining));
+            if(read < 0) throw new EOFException("Target ended " + remaining + " bytes early!");
+            filled += read;
+            remaining -= read;
+        }
+    }
+
+    private void copy(int addr, int len) throws IOException{
+        if(copyLen > 0 && copyAddr + copyLen == addr){
+            copyLen += len;
+        }else{
+            flushCopy();
+            copyAddr = addr;
+            copyLen = len;
+        }
+    }
+
+    private void flushCopy() throws IOException{
+        if(copyLen > 0){
+            encodeOp(DEZEncoder.COPY, 0x3f, copyLen);
+            encodeInt(copyAddr);
+            copyLen = 0;
+        }
+    }
+
+    /** Writes the window bytes from start to end as an ADD instruction. */
+    private void add(int start, int end) throws IOException{
+        if(end > start){
+            flushCopy();
+            encodeOp(DEZEncoder.ADD, 0x1f, end - start - 1);
+            write(window, start, end - start);
+        }
+    }
+
+    private void run(byte v, int len) throws IOException{
+        flushCopy();
+        encodeOp(DEZEncoder.RUN, 0x1f, len - 1);
+        write(v);
+    }
+
+    /** Same encoding as {@link DEZEncoder}. */
+    private void encodeOp(int op, int max, int len) throws IOException{
+        if(len <= max){
+            write(len | op);
+        }else{
+            int i = work.length;
+            int cont = 0;
+
+            while(len > max){
+                work[--i] = (byte) ((len & 0x7f) | cont);
+                len >>= 7;
+                cont = 0x80;
+            }
+            work[--i] = (byte) (len | 0x80 | op);
+            write(work, i, work.length - i);
+        }
+    }
+
+    private void encodeInt(int value) throws IOException{
+        int i = work.length;
+        int cont = 0;
+        while(value > 0x7f){
+            work[--i] = (byte) ((value & 0x7f) | cont);
+            value >>= 7;
+            cont = 0x80;
+        }
+        work[--i] = (byte) (value | cont);
+        write(work, i, work.length - i);
+    }
+
+    private void write(int value) throws IOException{
+        if(bufferSize == buffer.length) flushBuffer();
+        buffer[bufferSize++] = (byte) value;
+    }
+
+    private void write(byte[] data, int off, int len) throws IOException{
+        if(len > buffer.length - bufferSize){
+            flushBuffer();
+            if(len > buffer.length){
+                out.write(data, off, len);
+                return;
+            }
+        }
+        System.arraycopy(data, off, buffer, bufferSize, len);
+        bufferSize += len;
+    }
+
+    private void flushBuffer() throws IOException{
+        out.write(buffer, 0, bufferSize);
+        bufferSize = 0;
+    }
+}
@@ -0,0 +1,118 @@
+package io.anuke.ucore.io.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Creates 'DeltaZ-1' patches on multiple threads.
+ * <p>
+ * The source is indexed once, and the target is split into fixed-size blocks that are matched independently against
+ * the shared index. Each block's instructions only cover its own part of the target, so the instruction streams
+ * are simply concatenated after a single header. Copies within the target can't cross into earlier blocks,
+ * so patches may be slightly larger than with {@link ByteDeltaEncoder#toDiff(ByteMatcher, ByteDeltaEncoder)}.
+ * <p>
+ * This class is not available on GWT.
+ */
+public class ParallelDeltaEncoder{
+    private final ForkJoinPool pool;
+    private final int blockSize;
+
+    /** Creates an encoder using the common pool and 64 KB blocks. */
+    public ParallelDeltaEncoder(){
+        this(ForkJoinPool.commonPool(), 1 << 16);
+    }
+
+    /**
+     * @param pool Pool to run blocks on.
+     * @param blockSize Size of each target block. Smaller blocks spread work better, but find fewer matches within the target.
+     */
+    public ParallelDeltaEncoder(ForkJoinPool pool, int blockSize){
+        if(blockSize <= 0) throw new IllegalArgumentException("Block size must be positive!");
+        this.pool = pool;
+        this.blockSize = blockSize;
+    }
+
+    /** Creates a patch with the same settings as {@link ByteMatcherHash#ByteMatcherHash(byte[], byte[])}. */
+    public byte[] encode(byte[] source, byte[] target){
+        return encode(source, target, 6, 4, 1);
+    }
+
+    /**
+     * Creates a patch that turns the source into the target.
+     *
+     * @param b Block size of the hash, see {@link ByteMatcherHash#ByteMatcherHash(int, int, byte[], int, byte[])}.
+     * @param shortest Shortest copy.
+     * @param sstep Sampling interval of the source.
+     */
+    public byte[] encode(byte[] source, byte[] target, int b, int shortest, int sstep){
+        return encode(new SourceIndex(b, source, sstep), target, shortest);
+    }
+
+    /**
+     * Creates a patch that turns the indexed source into the target, reusing an index built earlier.
+     *
+     * @param shortest Shortest copy.
+     */
+    public byte[] encode(SourceIndex index, byte[] target, int shortest){
+        byte[] source = index.source;
+        int blocks = Math.max((target.length + blockSize - 1) / blockSize, 1);
+        Block[] tasks = new Block[blocks];
+
+        for(int i = 0; i < blocks; i++){
+            tasks[i] = new Block(index, shortest, target, i * blockSize, Math.min((i + 1) * blockSize, target.length));
+        }
+
+        pool.invoke(new RecursiveAction(){
+            @Override
+            protected void compute(){
+                invokeAll(tasks);
+            }
+        });
+
+        DEZEncoder header = new DEZEncoder();
+        header.init(source.length, target.length);
+
+        int size = header.size();
+        for(Block block : tasks){
+            size += block.encoder.size();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        try{
+            header.writeTo(out);
+            for(Block block : tasks){
+                block.encoder.writeTo(out);
+            }
+        }catch(IOException e){
+            //can't happen with byte array streams
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("serial")
+    private static class Block extends RecursiveAction{
+        final SourceIndex index;
+        final int shortest;
+        final byte[] target;
+        final int from, to;
+        final DEZEncoder encoder = new DEZEncoder();
+
+        Block(SourceIndex index, int shortest, byte[] target, int from, int to){
+            this.index = index;
+            this.shortest = shortest;
+            this.target = target;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            ByteMatcherHash matcher = new ByteMatcherHash(index, shortest, target, from, to);
+            encoder.reset();
+            ByteDeltaEncoder.toDiff(matcher, encoder, from, to);
+        }
+    }
+}
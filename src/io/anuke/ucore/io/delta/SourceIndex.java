@@ -0,0 +1,109 @@
+package io.anuke.ucore.io.delta;
+
+/**
+ * Hash chains of the blocks in a source array, as used by {@link ByteMatcherHash}.
+ * <p>
+ * Building the index is the part of a diff that only depends on the source, so when many targets are diffed against
+ * the same baseline, build it once and pass it to {@link ByteMatcherHash#ByteMatcherHash(SourceIndex, byte[])}.
+ * <p>
+ * Chains are stored in two flat arrays: the offsets of every indexed block, sorted by hash bucket, and the start of each
+ * bucket in that array. The index is never modified after it is built, so any number of matchers may share it, even on
+ * different threads. The source array must not be modified while the index is in use.
+ */
+public class SourceIndex{
+    final byte[] source;
+    final int b;
+    final int sstep;
+
+    final int hashMask;
+    /** Start of each bucket in {@link #offsets}. Bucket i ends where bucket i + 1 starts. */
+    final int[] buckets;
+    /** Offsets of all indexed blocks, grouped by bucket and ascending within each bucket. */
+    final int[] offsets;
+
+    /** Creates an index with a block size of 6 and a step of 1, the defaults of {@link ByteMatcherHash#ByteMatcherHash(byte[], byte[])}. */
+    public SourceIndex(byte[] source){
+        this(6, source, 1);
+    }
+
+    /**
+     * @param b Block size, which is the number of bytes hashed per key (&gt;=3).
+     * @param source Source array.
+     * @param sstep Interval of sampling of the source.
+     */
+    public SourceIndex(int b, byte[] source, int sstep){
+        if(sstep < 1) throw new IllegalArgumentException("Step must be at least 1!");
+        b = Math.max(b, 3);
+
+        // This may need tuning.
+        int logN = 31 - Integer.numberOfLeadingZeros(Math.max(source.length / sstep, 1));
+        int size = 1 << Math.max(14, logN - 5);
+
+        this.b = b;
+        this.source = source;
+        this.sstep = sstep;
+        this.hashMask = size - 1;
+        this.buckets = new int[size + 1];
+
+        //hash every block once, then counting sort the offsets by bucket
+        int blocks = source.length < b ? 0 : (source.length - b) / sstep + 1;
+        int[] hashes = new int[blocks];
+        CyclicHash hash = new CyclicHash(b);
+        int count = 0;
+
+        for(int k = 0; k < blocks; k++){
+            int pos = k * sstep;
+            int h = (sstep == 1 && k > 0) ? hash.update(source[pos - 1], source[pos - 1 + b]) : hash.init(source, pos);
+
+            if(isRun(source, pos)){
+                hashes[k] = -1;
+            }else{
+                hashes[k] = h & hashMask;
+                buckets[hashes[k] + 1]++;
+                count++;
+            }
+        }
+
+        for(int i = 0; i < size; i++){
+            buckets[i + 1] += buckets[i];
+        }
+
+        this.offsets = new int[count];
+        int[] fill = new int[size];
+        for(int k = 0; k < blocks; k++){
+            int h = hashes[k];
+            if(h != -1){
+                offsets[buckets[h] + fill[h]++] = k * sstep;
+            }
+        }
+    }
+
+    public byte[] getSource(){
+        return source;
+    }
+
+    /** @return The number of bytes hashed per block. */
+    public int getBlockSize(){
+        return b;
+    }
+
+    /** @return The interval at which source blocks were sampled. */
+    public int getStep(){
+        return sstep;
+    }
+
+    /** @return The number of blocks in the index. */
+    public int size(){
+        return offsets.length;
+    }
+
+    /**
+     * Checks for run of 3 bytes.
+     * <p>
+     * Boundaries are not checked.
+     */
+    static boolean isRun(byte[] s, int pos){
+        byte v = s[pos];
+        return v == s[pos + 1] && v == s[pos + 2];
+    }
+}
@@ -0,0 +1,172 @@
+package io.anuke.ucore.util;
+
+import com.badlogic.gdx.utils.Array;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap of items keyed by distance, used for nearest-first searches in spatial indices.
+ * Items are either ints (node indices) or objects. Arrays are reused between searches.
+ * Also holds the geometry helpers shared by those searches.
+ */
+class DistanceHeap{
+    private final boolean max;
+    private float[] keys = new float[16];
+    private int[] ints = new int[16];
+    private Object[] objects = new Object[16];
+    int size;
+
+    /** @param max Whether the largest key should be at the top, instead of the smallest. */
+    DistanceHeap(boolean max){
+        this.max = max;
+    }
+
+    void add(float key, int value){
+        add(key, value, null);
+    }
+
+    void add(float key, Object value){
+        add(key, -1, value);
+    }
+
+    float peekKey(){
+        return keys[0];
+    }
+
+    int peekInt(){
+        return ints[0];
+    }
+
+    Object peekObject(){
+        return objects[0];
+    }
+
+    /** Removes the top item. Read it with the peek methods first. */
+    void pop(){
+        size--;
+        if(size > 0){
+            keys[0] = keys[size];
+            ints[0] = ints[size];
+            objects[0] = objects[size];
+            down(0);
+        }
+        objects[size] = null;
+    }
+
+    boolean containsObject(Object value){
+        for(int i = 0; i < size; i++){
+            if(objects[i] == value) return true;
+        }
+        return false;
+    }
+
+    /** Pops every item into the array, in order from the bottom of the heap to the top. */
+    <T> void drainReversed(Array<T> out){
+        int start = out.size;
+        while(size > 0){
+            out.add((T) peekObject());
+            pop();
+        }
+
+        for(int i = start, j = out.size - 1; i < j; i++, j--){
+            out.swap(i, j);
+        }
+    }
+
+    void clear(){
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+    }
+
+    /** Squared distance from a point to a box. */
+    static float dst2(float x, float y, float x1, float y1, float x2, float y2){
+        float dx = Math.max(Math.max(x1 - x, x - x2), 0f);
+        float dy = Math.max(Math.max(y1 - y, y - y2), 0f);
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns the fraction (0-1) along the segment from (x, y) with delta (dx, dy) where it enters a box,
+     * or -1 if it doesn't intersect the box. Returns 0 if the segment starts inside the box.
+     */
+    static float intersect(float x, float y, float dx, float dy, float x1, float y1, float x2, float y2){
+        float tmin = 0f, tmax = 1f;
+
+        if(dx == 0f){
+            if(x < x1 || x > x2) return -1f;
+        }else{
+            float t1 = (x1 - x) / dx, t2 = (x2 - x) / dx;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            if(tmin > tmax) return -1f;
+        }
+
+        if(dy == 0f){
+            if(y < y1 || y > y2) return -1f;
+        }else{
+            float t1 = (y1 - y) / dy, t2 = (y2 - y) / dy;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+            if(tmin > tmax) return -1f;
+        }
+
+        return tmin;
+    }
+
+    private void add(float key, int value, Object object){
+        if(size >= keys.length){
+            keys = Arrays.copyOf(keys, size * 2);
+            ints = Arrays.copyOf(ints, size * 2);
+            objects = Arrays.copyOf(objects, size * 2);
+        }
+
+        keys[size] = key;
+        ints[size] = value;
+        objects[size] = object;
+        up(size++);
+    }
+
+    private boolean before(float a, float b){
+        return max ? a > b : a < b;
+    }
+
+    private void up(int index){
+        float key = keys[index];
+        int value = ints[index];
+        Object object = objects[index];
+
+        while(index > 0){
+            int parent = (index - 1) >> 1;
+            if(!before(key, keys[parent])) break;
+            keys[index] = keys[parent];
+            ints[index] = ints[parent];
+            objects[index] = objects[parent];
+            index = parent;
+        }
+
+        keys[index] = key;
+        ints[index] = value;
+        objects[index] = object;
+    }
+
+    private void down(int index){
+        float key = keys[index];
+        int value = ints[index];
+        Object object = objects[index];
+
+        while(true){
+            int child = index * 2 + 1;
+            if(child >= size) break;
+            if(child + 1 < size && before(keys[child + 1], keys[child])) child++;
+            if(!before(keys[child], key)) break;
+            keys[index] = keys[child];
+            ints[index] = ints[child];
+            objects[index] = objects[child];
+            index = child;
+        }
+
+        keys[index] = key;
+        ints[index] = value;
+        objects[index] = object;
+    }
+}
@@ -29,4 +29,9 @@ public class GridBits{
     public int height(){
         return height;
     }
+
+    /** Returns the underlying bits, where the bit of a position is at x + y * width. */
+    public com.badlogic.gdx.utils.Bits bits(){
+        return bits;
+    }
 }
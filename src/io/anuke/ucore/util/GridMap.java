@@ -1,6 +1,7 @@
 package io.anuke.ucore.util;
 
 import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.LongMap.Entries;
 import com.badlogic.gdx.utils.LongMap.Keys;
 import com.badlogic.gdx.utils.LongMap.Values;
 
@@ -44,6 +45,11 @@ public class GridMap<T>{
         return map.keys();
     }
 
+    /** Returns the entries of the underlying map. Keys are packed positions; see {@link io.anuke.ucore.util.Bits#packLong(int, int)}. */
+    public Entries<T> entries(){
+        return map.entries();
+    }
+
     public void clear(){
         map.clear();
     }
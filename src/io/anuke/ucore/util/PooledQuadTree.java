@@ -0,0 +1,507 @@
+package io.anuke.ucore.util;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.entities.EntityCollisions.BoundingBoxProvider;
+import io.anuke.ucore.function.Consumer;
+import io.anuke.ucore.function.Predicate;
+import io.anuke.ucore.util.QuadTree.QuadTreeObject;
+
+import java.util.Arrays;
+
+/**
+ * A quad tree with the same behavior as {@link QuadTree}, but stored entirely in flat arrays.
+ * <p>
+ * Nodes are indices into a pool of node bounds and child indices, and each node's objects form a linked list
+ * through a shared object array. Splitting takes nodes from the pool instead of allocating them, and clearing
+ * returns every node to the pool, so rebuilding the tree every frame produces no garbage.
+ *
+ * @param <T> The type of object this quad tree should contain.
+ */
+public class PooledQuadTree<T> implements SpatialIndex<T>{
+    /** Maximum depth of the tree. Prevents endless splitting when many objects share the same position. */
+    private static final int maxDepth = 16;
+
+    private final Rectangle tmp = new Rectangle();
+    private final Rectangle bounds;
+    private final int maxObjectsPerNode;
+    private BoundingBoxProvider<T> provider;
+
+    /** Node bounds: x, y, width, height. */
+    private float[] nodeBounds = new float[16 * 4];
+    /** Index of the first of 4 consecutive children (bottom left, bottom right, top left, top right), or -1 for leaves. */
+    private int[] nodeChildren = new int[16];
+    /** First object in each node, or -1 if there are none. */
+    private int[] nodeHead = new int[16];
+    private int[] nodeCount = new int[16];
+    private int[] nodeDepth = new int[16];
+    private int nodeSize;
+    /** First free block of 4 nodes, linked through nodeChildren. */
+    private int freeBlock = -1;
+
+    private Object[] objects = new Object[16];
+    /** Object bounds: x1, y1, x2, y2. */
+    private float[] objectBounds = new float[16 * 4];
+    private int[] objectNext = new int[16];
+    private int[] objectNode = new int[16];
+    private int size;
+
+    /** Node path of the last removal, used for unsplitting. */
+    private int[] path = new int[maxDepth + 1];
+    /** Heaps of nodes and results for nearest-first searches. */
+    private final DistanceHeap nodeHeap = new DistanceHeap(false), resultHeap = new DistanceHeap(true);
+
+    /**
+     * Constructs a new quad tree.
+     *
+     * @param maxObjectsPerNode How many objects may be in a node before it will split.
+     * Should be around 3-5 for optimal results, depending on your use case.
+     * @param bounds The total bounds of this tree
+     */
+    public PooledQuadTree(int maxObjectsPerNode, Rectangle bounds){
+        this.maxObjectsPerNode = maxObjectsPerNode;
+        this.bounds = bounds;
+        this.provider = (obj, out) -> {
+            if(obj instanceof QuadTreeObject){
+                ((QuadTreeObject) obj).getHitbox(out);
+            }else{
+                throw new IllegalArgumentException("The provided object does not implement QuadTreeObject! Did you forget to pass a custom BoundingBoxProvider into the quadtree?");
+            }
+        };
+
+        clear();
+    }
+
+    @Override
+    public void setBoundingBoxProvider(BoundingBoxProvider<T> prov){
+        this.provider = prov;
+    }
+
+    @Override
+    public void insert(T obj){
+        provider.getBoundingBox(obj, tmp);
+        if(!bounds.overlaps(tmp)){
+            return;
+        }
+
+        if(size >= objects.length){
+            int cap = objects.length * 2;
+            objects = Arrays.copyOf(objects, cap);
+            objectBounds = Arrays.copyOf(objectBounds, cap * 4);
+            objectNext = Arrays.copyOf(objectNext, cap);
+            objectNode = Arrays.copyOf(objectNode, cap);
+        }
+
+        int index = size++;
+        objects[index] = obj;
+        objectBounds[index * 4] = tmp.x;
+        objectBounds[index * 4 + 1] = tmp.y;
+        objectBounds[index * 4 + 2] = tmp.x + tmp.width;
+        objectBounds[index * 4 + 3] = tmp.y + tmp.height;
+
+        insert(0, index);
+    }
+
+    @Override
+    public void remove(T obj){
+        provider.getBoundingBox(obj, tmp);
+        float x1 = tmp.x, y1 = tmp.y, x2 = tmp.x + tmp.width, y2 = tmp.y + tmp.height;
+
+        //descend the same way insertion did, remembering the path
+        int node = 0, depth = 0;
+        path[depth] = node;
+        while(nodeChildren[node] != -1){
+            int child = getFittingChild(node, x1, y1, x2, y2);
+            if(child == -1) break;
+            node = child;
+            path[++depth] = node;
+        }
+
+        int prev = -1, index = -1;
+        for(int o = nodeHead[node]; o != -1; prev = o, o = objectNext[o]){
+            if(objects[o] == obj){
+                index = o;
+                break;
+            }
+        }
+
+        if(index == -1) return;
+
+        unlink(node, index, prev);
+        removeObject(index);
+
+        //unsplit from the bottom up, like the recursive QuadTree does
+        for(int i = depth; i >= 0; i--){
+            int n = path[i];
+            if(nodeChildren[n] != -1 && getTotalObjectCount(n) <= maxObjectsPerNode){
+                unsplit(n);
+            }
+        }
+    }
+
+    /** Removes all objects and returns every node to the pool. */
+    @Override
+    public void clear(){
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+        nodeSize = 0;
+        freeBlock = -1;
+
+        int root = newNode(bounds.x, bounds.y, bounds.width, bounds.height, 0);
+        nodeChildren[root] = -1;
+    }
+
+    /**
+     * Processes objects that may intersect the given rectangle.
+     * <p>
+     * This will never result in false positives.
+     */
+    @Override
+    public void getIntersect(Consumer<T> out, Rectangle toCheck){
+        getIntersect(0, out, toCheck.x, toCheck.y, toCheck.x + toCheck.width, toCheck.y + toCheck.height);
+    }
+
+    /**
+     * Fills the out parameter with any objects that may intersect the given rectangle.
+     * <p>
+     * This will result in false positives, but never a false negative.
+     */
+    @Override
+    public void getIntersect(Array<T> out, Rectangle toCheck){
+        getIntersect(0, out, toCheck.x, toCheck.y, toCheck.x + toCheck.width, toCheck.y + toCheck.height);
+    }
+
+    @Override
+    public void getNearest(float x, float y, float range, int k, Predicate<T> pred, DistanceProvider<T> dst, Array<T> out){
+        float range2 = range * range;
+        nodeHeap.clear();
+        resultHeap.clear();
+        nodeHeap.add(nodeDst2(0, x, y), 0);
+
+        while(nodeHeap.size > 0){
+            float limit = resultHeap.size >= k ? resultHeap.peekKey() : range2;
+            if(nodeHeap.peekKey() >= limit) break;
+
+            int node = nodeHeap.peekInt();
+            nodeHeap.pop();
+
+            for(int o = nodeHead[node]; o != -1; o = objectNext[o]){
+                if(DistanceHeap.dst2(x, y, objectBounds[o * 4], objectBounds[o * 4 + 1], objectBounds[o * 4 + 2], objectBounds[o * 4 + 3]) >= limit) continue;
+
+                T obj = (T) objects[o];
+                if(!pred.test(obj)) continue;
+
+                float d = dst.dst2(obj, x, y);
+                if(d >= limit) continue;
+
+                resultHeap.add(d, obj);
+                if(resultHeap.size > k) resultHeap.pop();
+                if(resultHeap.size >= k) limit = resultHeap.peekKey();
+            }
+
+            int children = nodeChildren[node];
+            if(children != -1){
+                for(int i = 0; i < 4; i++){
+                    float d = nodeDst2(children + i, x, y);
+                    if(d < limit) nodeHeap.add(d, children + i);
+                }
+            }
+        }
+
+        nodeHeap.clear();
+        resultHeap.drainReversed(out);
+    }
+
+    @Override
+    public T raycast(float x1, float y1, float x2, float y2, Predicate<T> pred, Vector2 hit){
+        float dx = x2 - x1, dy = y2 - y1;
+        float best = Float.MAX_VALUE;
+        T result = null;
+
+        nodeHeap.clear();
+        float rootEntry = nodeEntry(0, x1, y1, dx, dy);
+        if(rootEntry >= 0f) nodeHeap.add(rootEntry, 0);
+
+        while(nodeHeap.size > 0 && nodeHeap.peekKey() < best){
+            int node = nodeHeap.peekInt();
+            nodeHeap.pop();
+
+            for(int o = nodeHead[node]; o != -1; o = objectNext[o]){
+                float t = DistanceHeap.intersect(x1, y1, dx, dy, objectBounds[o * 4], objectBounds[o * 4 + 1], objectBounds[o * 4 + 2], objectBounds[o * 4 + 3]);
+                if(t >= 0f && t < best && pred.test((T) objects[o])){
+                    best = t;
+                    result = (T) objects[o];
+                }
+            }
+
+            int children = nodeChildren[node];
+            if(children != -1){
+                for(int i = 0; i < 4; i++){
+                    float t = nodeEntry(children + i, x1, y1, dx, dy);
+                    if(t >= 0f && t < best) nodeHeap.add(t, children + i);
+                }
+            }
+        }
+
+        nodeHeap.clear();
+        if(result != null && hit != null) hit.set(x1 + dx * best, y1 + dy * best);
+        return result;
+    }
+
+    @Override
+    public Rectangle getBounds(){
+        return bounds;
+    }
+
+    /** Returns the total number of objects in this tree. */
+    public int getTotalObjectCount(){
+        return size;
+    }
+
+    /** Returns the number of nodes currently in use, including unused nodes of unsplit blocks. */
+    public int getNodeCount(){
+        return nodeSize;
+    }
+
+    private void getIntersect(int node, Consumer<T> out, float x1, float y1, float x2, float y2){
+        int children = nodeChildren[node];
+        if(children != -1){
+            //same order as QuadTree: top left, top right, bottom left, bottom right
+            if(nodeOverlaps(children + 2, x1, y1, x2, y2)) getIntersect(children + 2, out, x1, y1, x2, y2);
+            if(nodeOverlaps(children + 3, x1, y1, x2, y2)) getIntersect(children + 3, out, x1, y1, x2, y2);
+            if(nodeOverlaps(children, x1, y1, x2, y2)) getIntersect(children, out, x1, y1, x2, y2);
+            if(nodeOverlaps(children + 1, x1, y1, x2, y2)) getIntersect(children + 1, out, x1, y1, x2, y2);
+        }
+
+        for(int o = nodeHead[node]; o != -1; o = objectNext[o]){
+            if(objectBounds[o * 4] < x2 && objectBounds[o * 4 + 2] > x1 && objectBounds[o * 4 + 1] < y2 && objectBounds[o * 4 + 3] > y1){
+                out.accept((T) objects[o]);
+            }
+        }
+    }
+
+    private void getIntersect(int node, Array<T> out, float x1, float y1, float x2, float y2){
+        int children = nodeChildren[node];
+        if(children != -1){
+            if(nodeOverlaps(children + 2, x1, y1, x2, y2)) getIntersect(children + 2, out, x1, y1, x2, y2);
+            if(nodeOverlaps(children + 3, x1, y1, x2, y2)) getIntersect(children + 3, out, x1, y1, x2, y2);
+            if(nodeOverlaps(children, x1, y1, x2, y2)) getIntersect(children, out, x1, y1, x2, y2);
+            if(nodeOverlaps(children + 1, x1, y1, x2, y2)) getIntersect(children + 1, out, x1, y1, x2, y2);
+        }
+
+        for(int o = nodeHead[node]; o != -1; o = objectNext[o]){
+            out.add((T) objects[o]);
+        }
+    }
+
+    private void insert(int node, int index){
+        float x1 = objectBounds[index * 4], y1 = objectBounds[index * 4 + 1], x2 = objectBounds[index * 4 + 2], y2 = objectBounds[index * 4 + 3];
+
+        while(true){
+            if(nodeChildren[node] == -1 && nodeCount[node] + 1 > maxObjectsPerNode && nodeDepth[node] < maxDepth){
+                split(node);
+            }
+
+            if(nodeChildren[node] == -1){
+                link(node, index);
+                return;
+            }
+
+            int child = getFittingChild(node, x1, y1, x2, y2);
+            if(child == -1){
+                link(node, index);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private void split(int node){
+        float x = nodeBounds[node * 4], y = nodeBounds[node * 4 + 1];
+        float subW = nodeBounds[node * 4 + 2] / 2, subH = nodeBounds[node * 4 + 3] / 2;
+        int depth = nodeDepth[node] + 1;
+
+        int children;
+        if(freeBlock != -1){
+            children = freeBlock;
+            freeBlock = nodeChildren[freeBlock];
+            setNode(children, x, y, subW, subH, depth);
+            setNode(children + 1, x + subW, y, subW, subH, depth);
+            setNode(children + 2, x, y + subH, subW, subH, depth);
+            setNode(children + 3, x + subW, y + subH, subW, subH, depth);
+        }else{
+            children = newNode(x, y, subW, subH, depth);
+            newNode(x + subW, y, subW, subH, depth);
+            newNode(x, y + subH, subW, subH, depth);
+            newNode(x + subW, y + subH, subW, subH, depth);
+        }
+
+        nodeChildren[node] = children;
+
+        //transfer objects to children if they fit entirely in one
+        int o = nodeHead[node];
+        nodeHead[node] = -1;
+        nodeCount[node] = 0;
+        while(o != -1){
+            int next = objectNext[o];
+            int child = getFittingChild(node, objectBounds[o * 4], objectBounds[o * 4 + 1], objectBounds[o * 4 + 2], objectBounds[o * 4 + 3]);
+            if(child != -1){
+                insert(child, o);
+            }else{
+                link(node, o);
+            }
+            o = next;
+        }
+    }
+
+    private void unsplit(int node){
+        int children = nodeChildren[node];
+        if(children == -1) return;
+
+        for(int i = 0; i < 4; i++){
+            int child = children + i;
+            unsplit(child);
+
+            int o = nodeHead[child];
+            while(o != -1){
+                int next = objectNext[o];
+                link(node, o);
+                o = next;
+            }
+        }
+
+        nodeChildren[node] = -1;
+        nodeChildren[children] = freeBlock;
+        freeBlock = children;
+    }
+
+    private int getTotalObjectCount(int node){
+        int count = nodeCount[node];
+        int children = nodeChildren[node];
+        if(children != -1){
+            for(int i = 0; i < 4; i++){
+                count += getTotalObjectCount(children + i);
+            }
+        }
+        return count;
+    }
+
+    private int getFittingChild(int node, float x1, float y1, float x2, float y2){
+        float verticalMidpoint = nodeBounds[node * 4] + nodeBounds[node * 4 + 2] / 2;
+        float horizontalMidpoint = nodeBounds[node * 4 + 1] + nodeBounds[node * 4 + 3] / 2;
+        int children = nodeChildren[node];
+
+        boolean topQuadrant = y1 > horizontalMidpoint;
+        boolean bottomQuadrant = y1 < horizontalMidpoint && y2 < horizontalMidpoint;
+
+        if(x1 < verticalMidpoint && x2 < verticalMidpoint){
+            if(topQuadrant){
+                return children + 2;
+            }else if(bottomQuadrant){
+                return children;
+            }
+        }else if(x1 > verticalMidpoint){
+            if(topQuadrant){
+                return children + 3;
+            }else if(bottomQuadrant){
+                return children + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean nodeOverlaps(int node, float x1, float y1, float x2, float y2){
+        float nx = nodeBounds[node * 4], ny = nodeBounds[node * 4 + 1];
+        return nx < x2 && nx + nodeBounds[node * 4 + 2] > x1 && ny < y2 && ny + nodeBounds[node * 4 + 3] > y1;
+    }
+
+    /** Squared distance from a point to a node. Sides on the edge of the tree are open, as objects may stick out of the tree there. */
+    private float nodeDst2(int node, float x, float y){
+        float nx = nodeBounds[node * 4], ny = nodeBounds[node * 4 + 1];
+        float nx2 = nx + nodeBounds[node * 4 + 2], ny2 = ny + nodeBounds[node * 4 + 3];
+        return DistanceHeap.dst2(x, y,
+            nx <= bounds.x ? -Float.MAX_VALUE : nx, ny <= bounds.y ? -Float.MAX_VALUE : ny,
+            nx2 >= bounds.x + bounds.width ? Float.MAX_VALUE : nx2, ny2 >= bounds.y + bounds.height ? Float.MAX_VALUE : ny2);
+    }
+
+    /** Segment entry point of a node, with the same open sides as {@link #nodeDst2(int, float, float)}. */
+    private float nodeEntry(int node, float x, float y, float dx, float dy){
+        float nx = nodeBounds[node * 4], ny = nodeBounds[node * 4 + 1];
+        float nx2 = nx + nodeBounds[node * 4 + 2], ny2 = ny + nodeBounds[node * 4 + 3];
+        return DistanceHeap.intersect(x, y, dx, dy,
+            nx <= bounds.x ? -Float.MAX_VALUE : nx, ny <= bounds.y ? -Float.MAX_VALUE : ny,
+            nx2 >= bounds.x + bounds.width ? Float.MAX_VALUE : nx2, ny2 >= bounds.y + bounds.height ? Float.MAX_VALUE : ny2);
+    }
+
+    private void link(int node, int index){
+        objectNext[index] = nodeHead[node];
+        objectNode[index] = node;
+        nodeHead[node] = index;
+        nodeCount[node]++;
+    }
+
+    private void unlink(int node, int index, int prev){
+        if(prev == -1){
+            nodeHead[node] = objectNext[index];
+        }else{
+            objectNext[prev] = objectNext[index];
+        }
+        nodeCount[node]--;
+    }
+
+    /** Frees an object slot by moving the last object into it. */
+    private void removeObject(int index){
+        int last = size - 1;
+
+        if(index != last){
+            //find whatever points to the last object and point it to its new index
+            int node = objectNode[last];
+            if(nodeHead[node] == last){
+                nodeHead[node] = index;
+            }else{
+                for(int o = nodeHead[node]; o != -1; o = objectNext[o]){
+                    if(objectNext[o] == last){
+                        objectNext[o] = index;
+                        break;
+                    }
+                }
+            }
+
+            objects[index] = objects[last];
+            objectNext[index] = objectNext[last];
+            objectNode[index] = node;
+            System.arraycopy(objectBounds, last * 4, objectBounds, index * 4, 4);
+        }
+
+        objects[last] = null;
+        size--;
+    }
+
+    private int newNode(float x, float y, float w, float h, int depth){
+        if(nodeSize >= nodeChildren.length){
+            int cap = nodeChildren.length * 2;
+            nodeBounds = Arrays.copyOf(nodeBounds, cap * 4);
+            nodeChildren = Arrays.copyOf(nodeChildren, cap);
+            nodeHead = Arrays.copyOf(nodeHead, cap);
+            nodeCount = Arrays.copyOf(nodeCount, cap);
+            nodeDepth = Arrays.copyOf(nodeDepth, cap);
+        }
+
+        int node = nodeSize++;
+        setNode(node, x, y, w, h, depth);
+        return node;
+    }
+
+    private void setNode(int node, float x, float y, float w, float h, int depth){
+        nodeBounds[node * 4] = x;
+        nodeBounds[node * 4 + 1] = y;
+        nodeBounds[node * 4 + 2] = w;
+        nodeBounds[node * 4 + 3] = h;
+        nodeChildren[node] = -1;
+        nodeHead[node] = -1;
+        nodeCount[node] = 0;
+        nodeDepth[node] = depth;
+    }
+}
@@ -1,9 +1,12 @@
 package io.anuke.ucore.util;
 
 import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IdentityMap;
 import io.anuke.ucore.entities.EntityCollisions.BoundingBoxProvider;
 import io.anuke.ucore.function.Consumer;
+import io.anuke.ucore.function.Predicate;
 
 import java.util.Iterator;
 
@@ -15,13 +18,23 @@ import java.util.Iterator;
  * @param <T> The type of object this quad tree should contain. An object only requires some way of getting rough bounds.
  * @author xSke
  */
-public class QuadTree<T>{
+public class QuadTree<T> implements SpatialIndex<T>{
     private static Rectangle tmp = new Rectangle();
+    /** Hitbox rectangle for intersection queries, so they can run on several threads at once. */
+    private static final ThreadLocal<Rectangle> queryTmp = new ThreadLocal<>();
     private int maxObjectsPerNode;
     private int level;
     private Rectangle bounds;
     private Array<T> objects;
+    /** Amount of objects in this node and all child nodes. */
+    private int total;
     private BoundingBoxProvider<T> provider;
+    private QuadTree<T> root;
+    private QuadTree<T> parent;
+    /** Maps each object to the node it is stored in. Only present in the root node, and only if tracking is enabled. */
+    private IdentityMap<T, QuadTree<T>> locations;
+    /** Heaps of nodes and results for nearest-first searches. Only present in the root node, created on first use. */
+    private DistanceHeap nodeHeap, resultHeap;
 
     private boolean leaf;
     private QuadTree<T> bottomLeftChild;
@@ -37,7 +50,7 @@ public class QuadTree<T>{
      * @param bounds The total bounds of this root node
      */
     public QuadTree(int maxObjectsPerNode, Rectangle bounds){
-        this(maxObjectsPerNode, 0, bounds, (obj, out) -> {
+        this(maxObjectsPerNode, 0, bounds, null, (obj, out) -> {
             if(obj instanceof QuadTreeObject){
                 ((QuadTreeObject) obj).getHitbox(out);
             }else{
@@ -46,8 +59,10 @@ public class QuadTree<T>{
         });
     }
 
-    private QuadTree(int maxObjectsPerNode, int level, Rectangle bounds, BoundingBoxProvider provider){
+    private QuadTree(int maxObjectsPerNode, int level, Rectangle bounds, QuadTree<T> parent, BoundingBoxProvider provider){
         this.level = level;
+        this.parent = parent;
+        this.root = parent == null ? this : parent.root;
         this.bounds = bounds;
         this.maxObjectsPerNode = maxObjectsPerNode;
         this.provider = provider;
@@ -55,10 +70,54 @@ public class QuadTree<T>{
         leaf = true;
     }
 
+    @Override
     public void setBoundingBoxProvider(BoundingBoxProvider<T> prov){
         this.provider = prov;
     }
 
+    /**
+     * Enables or disables tracking of the node each object is stored in. Must be called on the root node.
+     * <p>
+     * With tracking enabled, {@link #update(Object)} can relocate objects that have moved without rebuilding the whole tree,
+     * and {@link #remove(Object)} no longer depends on the object's bounds being the same as when it was inserted.
+     */
+    public void setTracking(boolean tracking){
+        if(root != this) throw new IllegalArgumentException("Tracking can only be set on the root node!");
+
+        if(tracking && locations == null){
+            locations = new IdentityMap<>();
+            trackAll();
+        }else if(!tracking){
+            locations = null;
+        }
+    }
+
+    /** Returns whether this tree tracks the node each object is stored in. */
+    public boolean isTracking(){
+        return root.locations != null;
+    }
+
+    /**
+     * Moves an object to the node it belongs in after its bounds have changed, inserting it if it is not in the tree yet.
+     * Objects that are still in the correct node are not touched. Requires tracking to be enabled.
+     */
+    public void update(T obj){
+        if(root.locations == null) throw new IllegalArgumentException("Tracking is not enabled for this quadtree! Call setTracking(true) first.");
+
+        QuadTree<T> node = root.locations.get(obj);
+
+        if(node != null){
+            provider.getBoundingBox(obj, tmp);
+            if(node.belongs(tmp)) return;
+
+            root.locations.remove(obj);
+            node.removeObject(obj);
+            node.collapse();
+        }
+
+        root.insert(obj);
+    }
+
     private void split(){
         if(!leaf) return;
 
@@ -66,10 +125,10 @@ public class QuadTree<T>{
         float subH = bounds.height / 2;
 
         leaf = false;
-        bottomLeftChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x, bounds.y, subW, subH), provider);
-        bottomRightChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x + subW, bounds.y, subW, subH), provider);
-        topLeftChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x, bounds.y + subH, subW, subH), provider);
-        topRightChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x + subW, bounds.y + subH, subW, subH), provider);
+        bottomLeftChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x, bounds.y, subW, subH), this, provider);
+        bottomRightChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x + subW, bounds.y, subW, subH), this, provider);
+        topLeftChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x, bounds.y + subH, subW, subH), this, provider);
+        topRightChild = new QuadTree<>(maxObjectsPerNode, level + 1, new Rectangle(bounds.x + subW, bounds.y + subH, subW, subH), this, provider);
 
         // Transfer objects to children if they fit entirely in one
         for(Iterator<T> iterator = objects.iterator(); iterator.hasNext(); ){
@@ -77,8 +136,10 @@ public class QuadTree<T>{
             provider.getBoundingBox(obj, tmp);
             QuadTree<T> child = getFittingChild(tmp);
             if(child != null){
-                child.insert(obj);
+                //the object is counted again as it is inserted into the child
                 iterator.remove();
+                count(-1);
+                child.insert(obj);
             }
         }
     }
@@ -87,16 +148,85 @@ public class QuadTree<T>{
         if(leaf) return;
         leaf = true;
 
+        bottomLeftChild.unsplit();
+        bottomRightChild.unsplit();
+        topLeftChild.unsplit();
+        topRightChild.unsplit();
+
         objects.addAll(bottomLeftChild.objects);
         objects.addAll(bottomRightChild.objects);
         objects.addAll(topLeftChild.objects);
         objects.addAll(topRightChild.objects);
         bottomLeftChild = bottomRightChild = topLeftChild = topRightChild = null;
+
+        if(root.locations != null){
+            for(int i = 0; i < objects.size; i++){
+                root.locations.put(objects.get(i), this);
+            }
+        }
+    }
+
+    /** Unsplits ancestors of this node that no longer hold enough objects, after an object was removed from this node. */
+    private void collapse(){
+        for(QuadTree<T> node = parent; node != null; node = node.parent){
+            if(node.total <= maxObjectsPerNode){
+                node.unsplit();
+            }else{
+                break;
+            }
+        }
+    }
+
+    /** Returns whether an object with the specified bounds would be inserted into this node. */
+    private boolean belongs(Rectangle box){
+        if(!leaf && getFittingChild(box) != null) return false;
+
+        for(QuadTree<T> node = this; node.parent != null; node = node.parent){
+            if(node.parent.getFittingChild(box) != node) return false;
+        }
+
+        return root.bounds.overlaps(box);
+    }
+
+    private void add(T obj){
+        objects.add(obj);
+        count(1);
+        if(root.locations != null){
+            root.locations.put(obj, this);
+        }
+    }
+
+    /** Removes an object from this node only. */
+    private void removeObject(T obj){
+        if(objects.removeValue(obj, true)){
+            count(-1);
+        }
+    }
+
+    /** Adds to the object count of this node and its ancestors. */
+    private void count(int amount){
+        for(QuadTree<T> node = this; node != null; node = node.parent){
+            node.total += amount;
+        }
+    }
+
+    private void trackAll(){
+        for(int i = 0; i < objects.size; i++){
+            root.locations.put(objects.get(i), this);
+        }
+
+        if(!leaf){
+            bottomLeftChild.trackAll();
+            bottomRightChild.trackAll();
+            topLeftChild.trackAll();
+            topRightChild.trackAll();
+        }
     }
 
     /**
      * Inserts an object into this node or its child nodes. This will split a leaf node if it exceeds the object limit.
      */
+    @Override
     public void insert(T obj){
         provider.getBoundingBox(obj, tmp);
         if(!bounds.overlaps(tmp)){
@@ -109,7 +239,7 @@ public class QuadTree<T>{
 
         if(leaf){
             // Leaf, so no need to add to children, just add to root
-            objects.add(obj);
+            add(obj);
         }else{
             provider.getBoundingBox(obj, tmp);
             // Add to relevant child, or root if can't fit completely in a child
@@ -117,7 +247,7 @@ public class QuadTree<T>{
             if(child != null){
                 child.insert(obj);
             }else{
-                objects.add(obj);
+                add(obj);
             }
         }
     }
@@ -125,10 +255,20 @@ public class QuadTree<T>{
     /**
      * Removes an object from this node or its child nodes.
      */
+    @Override
     public void remove(T obj){
+        if(root.locations != null){
+            QuadTree<T> node = root.locations.remove(obj);
+            if(node != null){
+                node.removeObject(obj);
+                node.collapse();
+            }
+            return;
+        }
+
         if(leaf){
             // Leaf, no children, remove from root
-            objects.removeValue(obj, true);
+            removeObject(obj);
         }else{
             // Remove from relevant child
             provider.getBoundingBox(obj, tmp);
@@ -138,20 +278,28 @@ public class QuadTree<T>{
                 child.remove(obj);
             }else{
                 // Or root if object doesn't fit in a child
-                objects.removeValue(obj, true);
+                removeObject(obj);
             }
 
-            if(getTotalObjectCount() <= maxObjectsPerNode) unsplit();
+            if(total <= maxObjectsPerNode) unsplit();
         }
     }
 
     /** Removes all objects. */
+    @Override
     public void clear(){
+        if(this == root && locations != null) locations.clear();
+        if(parent != null) parent.count(-total);
+        clearAll();
+    }
+
+    private void clearAll(){
+        total = 0;
         objects.clear();
-        if(bottomLeftChild != null) bottomLeftChild.clear();
-        if(bottomRightChild != null) bottomRightChild.clear();
-        if(topLeftChild != null) topLeftChild.clear();
-        if(topRightChild != null) topRightChild.clear();
+        if(bottomLeftChild != null) bottomLeftChild.clearAll();
+        if(bottomRightChild != null) bottomRightChild.clearAll();
+        if(topLeftChild != null) topLeftChild.clearAll();
+        if(topRightChild != null) topRightChild.clearAll();
     }
 
     private QuadTree<T> getFittingChild(Rectangle boundingBox){
@@ -205,17 +353,26 @@ public class QuadTree<T>{
      * <p>
      * This will never result in false positives.
      */
+    @Override
     public void getIntersect(Consumer<T> out, Rectangle toCheck){
+        Rectangle rect = queryTmp.get();
+        if(rect == null){
+            queryTmp.set(rect = new Rectangle());
+        }
+        getIntersect(out, toCheck, rect);
+    }
+
+    private void getIntersect(Consumer<T> out, Rectangle toCheck, Rectangle rect){
         if(!leaf){
-            if(topLeftChild.bounds.overlaps(toCheck)) topLeftChild.getIntersect(out, toCheck);
-            if(topRightChild.bounds.overlaps(toCheck)) topRightChild.getIntersect(out, toCheck);
-            if(bottomLeftChild.bounds.overlaps(toCheck)) bottomLeftChild.getIntersect(out, toCheck);
-            if(bottomRightChild.bounds.overlaps(toCheck)) bottomRightChild.getIntersect(out, toCheck);
+            if(topLeftChild.bounds.overlaps(toCheck)) topLeftChild.getIntersect(out, toCheck, rect);
+            if(topRightChild.bounds.overlaps(toCheck)) topRightChild.getIntersect(out, toCheck, rect);
+            if(bottomLeftChild.bounds.overlaps(toCheck)) bottomLeftChild.getIntersect(out, toCheck, rect);
+            if(bottomRightChild.bounds.overlaps(toCheck)) bottomRightChild.getIntersect(out, toCheck, rect);
         }
 
         for(int i = 0; i < objects.size; i++){
-            provider.getBoundingBox(objects.get(i), tmp);
-            if(tmp.overlaps(toCheck)){
+            provider.getBoundingBox(objects.get(i), rect);
+            if(rect.overlaps(toCheck)){
                 out.accept(objects.get(i));
             }
         }
@@ -226,6 +383,7 @@ public class QuadTree<T>{
      * <p>
      * This will result in false positives, but never a false negative.
      */
+    @Override
     public void getIntersect(Array<T> out, Rectangle toCheck){
         if(!leaf){
             if(topLeftChild.bounds.overlaps(toCheck)) topLeftChild.getIntersect(out, toCheck);
@@ -237,6 +395,119 @@ public class QuadTree<T>{
         out.addAll(objects);
     }
 
+    @Override
+    public void getNearest(float x, float y, float range, int k, Predicate<T> pred, DistanceProvider<T> dst, Array<T> out){
+        DistanceHeap nodes = root.nodeHeap(), results = root.resultHeap;
+        float range2 = range * range;
+        nodes.add(dst2(x, y), this);
+
+        while(nodes.size > 0){
+            float limit = results.size >= k ? results.peekKey() : range2;
+            if(nodes.peekKey() >= limit) break;
+
+            QuadTree<T> node = (QuadTree<T>) nodes.peekObject();
+            nodes.pop();
+
+            for(int i = 0; i < node.objects.size; i++){
+                T obj = node.objects.get(i);
+                provider.getBoundingBox(obj, tmp);
+                if(DistanceHeap.dst2(x, y, tmp.x, tmp.y, tmp.x + tmp.width, tmp.y + tmp.height) >= limit || !pred.test(obj)) continue;
+
+                float d = dst.dst2(obj, x, y);
+                if(d >= limit) continue;
+
+                results.add(d, obj);
+                if(results.size > k) results.pop();
+                if(results.size >= k) limit = results.peekKey();
+            }
+
+            if(!node.leaf){
+                node.topLeftChild.queueNearest(nodes, x, y, limit);
+                node.topRightChild.queueNearest(nodes, x, y, limit);
+                node.bottomLeftChild.queueNearest(nodes, x, y, limit);
+                node.bottomRightChild.queueNearest(nodes, x, y, limit);
+            }
+        }
+
+        nodes.clear();
+        results.drainReversed(out);
+    }
+
+    @Override
+    public T raycast(float x1, float y1, float x2, float y2, Predicate<T> pred, Vector2 hit){
+        DistanceHeap nodes = root.nodeHeap();
+        float dx = x2 - x1, dy = y2 - y1;
+        float best = Float.MAX_VALUE;
+        T result = null;
+
+        queueRaycast(nodes, x1, y1, dx, dy, best);
+
+        while(nodes.size > 0 && nodes.peekKey() < best){
+            QuadTree<T> node = (QuadTree<T>) nodes.peekObject();
+            nodes.pop();
+
+            for(int i = 0; i < node.objects.size; i++){
+                T obj = node.objects.get(i);
+                provider.getBoundingBox(obj, tmp);
+                float t = DistanceHeap.intersect(x1, y1, dx, dy, tmp.x, tmp.y, tmp.x + tmp.width, tmp.y + tmp.height);
+                if(t >= 0f && t < best && pred.test(obj)){
+                    best = t;
+                    result = obj;
+                }
+            }
+
+            if(!node.leaf){
+                node.topLeftChild.queueRaycast(nodes, x1, y1, dx, dy, best);
+                node.topRightChild.queueRaycast(nodes, x1, y1, dx, dy, best);
+                node.bottomLeftChild.queueRaycast(nodes, x1, y1, dx, dy, best);
+                node.bottomRightChild.queueRaycast(nodes, x1, y1, dx, dy, best);
+            }
+        }
+
+        nodes.clear();
+        if(result != null && hit != null) hit.set(x1 + dx * best, y1 + dy * best);
+        return result;
+    }
+
+    private DistanceHeap nodeHeap(){
+        if(nodeHeap == null){
+            nodeHeap = new DistanceHeap(false);
+            resultHeap = new DistanceHeap(true);
+        }
+        return nodeHeap;
+    }
+
+    private void queueNearest(DistanceHeap nodes, float x, float y, float limit){
+        float d = dst2(x, y);
+        if(d < limit) nodes.add(d, this);
+    }
+
+    private void queueRaycast(DistanceHeap nodes, float x, float y, float dx, float dy, float limit){
+        float t = DistanceHeap.intersect(x, y, dx, dy, openX1(), openY1(), openX2(), openY2());
+        if(t >= 0f && t < limit) nodes.add(t, this);
+    }
+
+    /** Squared distance from a point to this node. Sides on the edge of the tree are open, as objects may stick out of the tree there. */
+    private float dst2(float x, float y){
+        return DistanceHeap.dst2(x, y, openX1(), openY1(), openX2(), openY2());
+    }
+
+    private float openX1(){
+        return bounds.x <= root.bounds.x ? -Float.MAX_VALUE : bounds.x;
+    }
+
+    private float openY1(){
+        return bounds.y <= root.bounds.y ? -Float.MAX_VALUE : bounds.y;
+    }
+
+    private float openX2(){
+        return bounds.x + bounds.width >= root.bounds.x + root.bounds.width ? Float.MAX_VALUE : bounds.x + bounds.width;
+    }
+
+    private float openY2(){
+        return bounds.y + bounds.height >= root.bounds.y + root.bounds.height ? Float.MAX_VALUE : bounds.y + bounds.height;
+    }
+
     /**
      * Returns whether this node is a leaf node (has no child nodes)
      */
@@ -275,6 +546,7 @@ public class QuadTree<T>{
     /**
      * Returns the entire bounds of this node.
      */
+    @Override
     public Rectangle getBounds(){
         return bounds;
     }
@@ -289,17 +561,11 @@ public class QuadTree<T>{
     }
 
     /**
-     * Returns the total number of objects in this node and all child nodes, recursively
+     * Returns the total number of objects in this node and all child nodes. The count is kept up to date as objects are
+     * inserted and removed, so this doesn't traverse the tree.
      */
     public int getTotalObjectCount(){
-        int count = objects.size;
-        if(!leaf){
-            count += topLeftChild.getTotalObjectCount();
-            count += topRightChild.getTotalObjectCount();
-            count += bottomLeftChild.getTotalObjectCount();
-            count += bottomRightChild.getTotalObjectCount();
-        }
-        return count;
+        return total;
     }
 
     /**
@@ -0,0 +1,395 @@
+package io.anuke.ucore.util;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.entities.EntityCollisions.BoundingBoxProvider;
+import io.anuke.ucore.function.Consumer;
+import io.anuke.ucore.function.IntConsumer;
+import io.anuke.ucore.function.Predicate;
+import io.anuke.ucore.util.QuadTree.QuadTreeObject;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid of fixed-size cells, used as a drop-in alternative to {@link QuadTree}.
+ * <p>
+ * All storage is kept in flat arrays that are reused between clears, so rebuilding the grid every frame
+ * is O(n) and does not allocate once the arrays have grown to fit the largest object count.
+ * Objects that span several cells are stored in each of them, but are only ever reported once per query.
+ *
+ * @param <T> The type of object this grid should contain.
+ */
+public class SpatialHashGrid<T> implements SpatialIndex<T>{
+    private final Rectangle tmp = new Rectangle();
+    private final Rectangle bounds;
+    private final float cellSize;
+    private final int width, height;
+    private BoundingBoxProvider<T> provider;
+
+    /** First entry of each cell, or -1 if the cell is empty. */
+    private final int[] cellHeads;
+    /** Indices of all cells that currently have entries, so clearing does not touch every cell. */
+    private int[] usedCells = new int[16];
+    private int usedSize;
+    /** Set when cells were re-used after removals often enough that the whole grid has to be cleared. */
+    private boolean clearAll;
+
+    /** Linked list of entries, each pointing to an object index. */
+    private int[] entryNext = new int[16];
+    private int[] entryObject = new int[16];
+    private int entrySize;
+    private int freeEntry = -1;
+
+    /** Objects, with 4 floats of bounds (x1, y1, x2, y2) and 4 ints of cell range per object. */
+    private Object[] objects = new Object[16];
+    private float[] objectBounds = new float[16 * 4];
+    private int[] objectCells = new int[16 * 4];
+    private int size;
+
+    private final DistanceHeap resultHeap = new DistanceHeap(true);
+
+    /**
+     * Constructs a new grid.
+     *
+     * @param cellSize The size of each cell. Should be around the size of the largest common object.
+     * @param bounds The total bounds of this grid
+     */
+    public SpatialHashGrid(float cellSize, Rectangle bounds){
+        if(cellSize <= 0) throw new IllegalArgumentException("Cell size must be positive!");
+
+        this.cellSize = cellSize;
+        this.bounds = bounds;
+        this.width = Math.max((int) Math.ceil(bounds.width / cellSize), 1);
+        this.height = Math.max((int) Math.ceil(bounds.height / cellSize), 1);
+        this.cellHeads = new int[width * height];
+        this.provider = (obj, out) -> {
+            if(obj instanceof QuadTreeObject){
+                ((QuadTreeObject) obj).getHitbox(out);
+            }else{
+                throw new IllegalArgumentException("The provided object does not implement QuadTreeObject! Did you forget to pass a custom BoundingBoxProvider into the grid?");
+            }
+        };
+
+        Arrays.fill(cellHeads, -1);
+    }
+
+    @Override
+    public void setBoundingBoxProvider(BoundingBoxProvider<T> prov){
+        this.provider = prov;
+    }
+
+    @Override
+    public void insert(T obj){
+        provider.getBoundingBox(obj, tmp);
+        if(!bounds.overlaps(tmp)){
+            return;
+        }
+
+        if(size >= objects.length){
+            int cap = objects.length * 2;
+            objects = Arrays.copyOf(objects, cap);
+            objectBounds = Arrays.copyOf(objectBounds, cap * 4);
+            objectCells = Arrays.copyOf(objectCells, cap * 4);
+        }
+
+        int index = size++;
+        objects[index] = obj;
+
+        objectBounds[index * 4] = tmp.x;
+        objectBounds[index * 4 + 1] = tmp.y;
+        objectBounds[index * 4 + 2] = tmp.x + tmp.width;
+        objectBounds[index * 4 + 3] = tmp.y + tmp.height;
+
+        int x1 = cellX(tmp.x), y1 = cellY(tmp.y), x2 = cellX(tmp.x + tmp.width), y2 = cellY(tmp.y + tmp.height);
+        objectCells[index * 4] = x1;
+        objectCells[index * 4 + 1] = y1;
+        objectCells[index * 4 + 2] = x2;
+        objectCells[index * 4 + 3] = y2;
+
+        for(int cx = x1; cx <= x2; cx++){
+            for(int cy = y1; cy <= y2; cy++){
+                addEntry(cx + cy * width, index);
+            }
+        }
+    }
+
+    /**
+     * Removes an object from this grid.
+     * This requires a linear scan to find the object, so it is much slower than clearing and re-inserting everything.
+     */
+    @Override
+    public void remove(T obj){
+        int index = indexOf(obj);
+        if(index == -1) return;
+
+        forEachCell(index, cell -> removeEntry(cell, index));
+
+        //move the last object into the removed slot
+        int last = size - 1;
+        if(index != last){
+            objects[index] = objects[last];
+            System.arraycopy(objectBounds, last * 4, objectBounds, index * 4, 4);
+            System.arraycopy(objectCells, last * 4, objectCells, index * 4, 4);
+            forEachCell(index, cell -> {
+                for(int e = cellHeads[cell]; e != -1; e = entryNext[e]){
+                    if(entryObject[e] == last) entryObject[e] = index;
+                }
+            });
+        }
+
+        objects[last] = null;
+        size--;
+    }
+
+    @Override
+    public void clear(){
+        if(clearAll){
+            Arrays.fill(cellHeads, -1);
+            clearAll = false;
+        }else{
+            for(int i = 0; i < usedSize; i++){
+                cellHeads[usedCells[i]] = -1;
+            }
+        }
+
+        Arrays.fill(objects, 0, size, null);
+        usedSize = 0;
+        entrySize = 0;
+        freeEntry = -1;
+        size = 0;
+    }
+
+    @Override
+    public void getIntersect(Consumer<T> out, Rectangle toCheck){
+        if(!bounds.overlaps(toCheck)) return;
+
+        float qx1 = toCheck.x, qy1 = toCheck.y, qx2 = toCheck.x + toCheck.width, qy2 = toCheck.y + toCheck.height;
+        int x1 = cellX(qx1), y1 = cellY(qy1), x2 = cellX(qx2), y2 = cellY(qy2);
+
+        for(int cy = y1; cy <= y2; cy++){
+            for(int cx = x1; cx <= x2; cx++){
+                for(int e = cellHeads[cx + cy * width]; e != -1; e = entryNext[e]){
+                    int o = entryObject[e];
+                    if(isFirstCell(o, cx, cy, x1, y1) && overlaps(o, qx1, qy1, qx2, qy2)){
+                        out.accept((T) objects[o]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the out parameter with objects that intersect the given rectangle.
+     * <p>
+     * Unlike the quadtree, this never results in false positives.
+     */
+    @Override
+    public void getIntersect(Array<T> out, Rectangle toCheck){
+        if(!bounds.overlaps(toCheck)) return;
+
+        float qx1 = toCheck.x, qy1 = toCheck.y, qx2 = toCheck.x + toCheck.width, qy2 = toCheck.y + toCheck.height;
+        int x1 = cellX(qx1), y1 = cellY(qy1), x2 = cellX(qx2), y2 = cellY(qy2);
+
+        for(int cy = y1; cy <= y2; cy++){
+            for(int cx = x1; cx <= x2; cx++){
+                for(int e = cellHeads[cx + cy * width]; e != -1; e = entryNext[e]){
+                    int o = entryObject[e];
+                    if(isFirstCell(o, cx, cy, x1, y1) && overlaps(o, qx1, qy1, qx2, qy2)){
+                        out.add((T) objects[o]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches rings of cells around the point, stopping once no unvisited cell can contain anything closer.
+     * Results are checked for duplicates with a linear scan, so this is meant for small values of k.
+     */
+    @Override
+    public void getNearest(float x, float y, float range, int k, Predicate<T> pred, DistanceProvider<T> dst, Array<T> out){
+        float range2 = range * range;
+        int cx = cellX(x), cy = cellY(y);
+        resultHeap.clear();
+
+        for(int r = 0; ; r++){
+            //every object not found yet is at least this far away
+            float lower = Math.max(r - 1, 0) * cellSize;
+            float limit = resultHeap.size >= k ? resultHeap.peekKey() : range2;
+            if(lower * lower >= limit) break;
+            if(cx - r < 0 && cy - r < 0 && cx + r >= width && cy + r >= height) break;
+
+            for(int ry = Math.max(cy - r, 0); ry <= Math.min(cy + r, height - 1); ry++){
+                //only the outline of the ring is new
+                int step = ry == cy - r || ry == cy + r ? 1 : 2 * r;
+
+                for(int rx = cx - r; rx <= cx + r; rx += step){
+                    if(rx < 0 || rx >= width) continue;
+
+                    for(int e = cellHeads[rx + ry * width]; e != -1; e = entryNext[e]){
+                        int o = entryObject[e];
+                        if(DistanceHeap.dst2(x, y, objectBounds[o * 4], objectBounds[o * 4 + 1], objectBounds[o * 4 + 2], objectBounds[o * 4 + 3]) >= limit) continue;
+
+                        T obj = (T) objects[o];
+                        if(resultHeap.containsObject(obj) || !pred.test(obj)) continue;
+
+                        float d = dst.dst2(obj, x, y);
+                        if(d >= limit) continue;
+
+                        resultHeap.add(d, obj);
+                        if(resultHeap.size > k) resultHeap.pop();
+                        if(resultHeap.size >= k) limit = resultHeap.peekKey();
+                    }
+                }
+            }
+        }
+
+        resultHeap.drainReversed(out);
+    }
+
+    /**
+     * Walks the cells along the segment in order, stopping at the first cell that ends after the closest hit so far.
+     * Only the part of the segment inside the bounds of this grid is checked.
+     */
+    @Override
+    public T raycast(float x1, float y1, float x2, float y2, Predicate<T> pred, Vector2 hit){
+        float dx = x2 - x1, dy = y2 - y1;
+        float start = DistanceHeap.intersect(x1, y1, dx, dy, bounds.x, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height);
+        if(start < 0f) return null;
+
+        int cx = cellX(x1 + dx * start), cy = cellY(y1 + dy * start);
+        int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1;
+        float deltaX = dx == 0f ? Float.MAX_VALUE : cellSize / Math.abs(dx);
+        float deltaY = dy == 0f ? Float.MAX_VALUE : cellSize / Math.abs(dy);
+        //segment fraction at which the next cell border is crossed on each axis
+        float nextX = dx == 0f ? Float.MAX_VALUE : (bounds.x + (cx + (dx > 0 ? 1 : 0)) * cellSize - x1) / dx;
+        float nextY = dy == 0f ? Float.MAX_VALUE : (bounds.y + (cy + (dy > 0 ? 1 : 0)) * cellSize - y1) / dy;
+
+        float best = Float.MAX_VALUE;
+        T result = null;
+
+        while(true){
+            for(int e = cellHeads[cx + cy * width]; e != -1; e = entryNext[e]){
+                int o = entryObject[e];
+                float t = DistanceHeap.intersect(x1, y1, dx, dy, objectBounds[o * 4], objectBounds[o * 4 + 1], objectBounds[o * 4 + 2], objectBounds[o * 4 + 3]);
+                if(t >= 0f && t < best && pred.test((T) objects[o])){
+                    best = t;
+                    result = (T) objects[o];
+                }
+            }
+
+            float exit = Math.min(nextX, nextY);
+            if(best <= exit || exit >= 1f) break;
+
+            if(nextX < nextY){
+                cx += stepX;
+                nextX += deltaX;
+                if(cx < 0 || cx >= width) break;
+            }else{
+                cy += stepY;
+                nextY += deltaY;
+                if(cy < 0 || cy >= height) break;
+            }
+        }
+
+        if(result != null && hit != null) hit.set(x1 + dx * best, y1 + dy * best);
+        return result;
+    }
+
+    @Override
+    public Rectangle getBounds(){
+        return bounds;
+    }
+
+    /** Returns the size of each cell. */
+    public float getCellSize(){
+        return cellSize;
+    }
+
+    /** Returns the total number of objects in this grid. */
+    public int getTotalObjectCount(){
+        return size;
+    }
+
+    /**
+     * An object spanning several cells is only reported in the first cell (lowest x and y) shared
+     * between its own cell range and the query's cell range. This removes duplicates without any per-query state.
+     */
+    private boolean isFirstCell(int o, int cx, int cy, int qx1, int qy1){
+        return Math.max(objectCells[o * 4], qx1) == cx && Math.max(objectCells[o * 4 + 1], qy1) == cy;
+    }
+
+    private int indexOf(T obj){
+        for(int i = 0; i < size; i++){
+            if(objects[i] == obj){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean overlaps(int o, float x1, float y1, float x2, float y2){
+        return objectBounds[o * 4] < x2 && objectBounds[o * 4 + 2] > x1 && objectBounds[o * 4 + 1] < y2 && objectBounds[o * 4 + 3] > y1;
+    }
+
+    private void forEachCell(int o, IntConsumer cons){
+        for(int cx = objectCells[o * 4]; cx <= objectCells[o * 4 + 2]; cx++){
+            for(int cy = objectCells[o * 4 + 1]; cy <= objectCells[o * 4 + 3]; cy++){
+                cons.accept(cx + cy * width);
+            }
+        }
+    }
+
+    private void addEntry(int cell, int object){
+        int e;
+        if(freeEntry != -1){
+            e = freeEntry;
+            freeEntry = entryNext[e];
+        }else{
+            if(entrySize >= entryNext.length){
+                entryNext = Arrays.copyOf(entryNext, entrySize * 2);
+                entryObject = Arrays.copyOf(entryObject, entrySize * 2);
+            }
+            e = entrySize++;
+        }
+
+        if(cellHeads[cell] == -1 && !clearAll){
+            //cells emptied by removals may be tracked twice; give up tracking once that happens too often
+            if(usedSize >= cellHeads.length){
+                clearAll = true;
+            }else if(usedSize >= usedCells.length){
+                usedCells = Arrays.copyOf(usedCells, usedSize * 2);
+            }
+            if(!clearAll) usedCells[usedSize++] = cell;
+        }
+
+        entryObject[e] = object;
+        entryNext[e] = cellHeads[cell];
+        cellHeads[cell] = e;
+    }
+
+    private void removeEntry(int cell, int object){
+        int prev = -1;
+        for(int e = cellHeads[cell]; e != -1; prev = e, e = entryNext[e]){
+            if(entryObject[e] == object){
+                if(prev == -1){
+                    cellHeads[cell] = entryNext[e];
+                }else{
+                    entryNext[prev] = entryNext[e];
+                }
+                entryNext[e] = freeEntry;
+                freeEntry = e;
+                return;
+            }
+        }
+    }
+
+    private int cellX(float x){
+        return Mathf.clamp((int) ((x - bounds.x) / cellSize), 0, width - 1);
+    }
+
+    private int cellY(float y){
+        return Mathf.clamp((int) ((y - bounds.y) / cellSize), 0, height - 1);
+    }
+}
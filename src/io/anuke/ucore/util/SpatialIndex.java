@@ -0,0 +1,62 @@
+package io.anuke.ucore.util;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Array;
+import io.anuke.ucore.entities.EntityCollisions.BoundingBoxProvider;
+import io.anuke.ucore.function.Consumer;
+import io.anuke.ucore.function.Predicate;
+
+/**
+ * A structure that stores objects by their rough bounds and allows fast rectangle queries.
+ * Implemented by {@link QuadTree} and {@link SpatialHashGrid}.
+ *
+ * @param <T> The type of object this index should contain.
+ */
+public interface SpatialIndex<T>{
+
+    /** Sets the provider used to get the bounding box of each object. */
+    void setBoundingBoxProvider(BoundingBoxProvider<T> prov);
+
+    /** Inserts an object into this index. Objects outside the bounds of this index are ignored. */
+    void insert(T obj);
+
+    /** Removes an object from this index. */
+    void remove(T obj);
+
+    /** Removes all objects. */
+    void clear();
+
+    /** Processes objects that intersect the given rectangle. */
+    void getIntersect(Consumer<T> out, Rectangle toCheck);
+
+    /**
+     * Fills the out parameter with any objects that may intersect the given rectangle.
+     * <p>
+     * This may result in false positives, but never a false negative.
+     */
+    void getIntersect(Array<T> out, Rectangle toCheck);
+
+    /**
+     * Fills the out array with up to k objects closest to a point, nearest first.
+     * Only objects that pass the predicate and are closer than the range are included.
+     * Nodes are searched in order of distance, so only the area around the closest objects is visited.
+     *
+     * @param dst Squared distance from the point to an object. This must never be less than the squared distance to its bounding box.
+     */
+    void getNearest(float x, float y, float range, int k, Predicate<T> pred, DistanceProvider<T> dst, Array<T> out);
+
+    /**
+     * Returns the object whose bounding box is hit first by the segment from (x1, y1) to (x2, y2), or null if nothing is hit.
+     *
+     * @param hit If not null, set to the point where the bounding box was hit.
+     */
+    T raycast(float x1, float y1, float x2, float y2, Predicate<T> pred, Vector2 hit);
+
+    /** Returns the entire bounds of this index. */
+    Rectangle getBounds();
+
+    interface DistanceProvider<T>{
+        float dst2(T obj, float x, float y);
+    }
+}